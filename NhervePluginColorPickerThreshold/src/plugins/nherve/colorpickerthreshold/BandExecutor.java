@@ -0,0 +1,333 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * Splits the rows of an image in bands and processes them on a pool of
+ * threads. Bands never overlap, so tasks writing in the rows they are given
+ * produce exactly the same result as a sequential loop.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class BandExecutor {
+
+	/**
+	 * The work done on a band of rows.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	static abstract class BandTask {
+
+		/**
+		 * Processes the rows from firstRow (inclusive) to lastRow (exclusive).
+		 *
+		 * @param firstRow
+		 *            the first row
+		 * @param lastRow
+		 *            the last row
+		 * @throws SignatureException
+		 *             the signature exception
+		 */
+		abstract void process(int firstRow, int lastRow) throws SignatureException;
+	}
+
+	/**
+	 * Something that may be cancelled, checked between two bands.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	interface Cancellable {
+
+		/**
+		 * Checks if is cancelled.
+		 *
+		 * @return true, if is cancelled
+		 */
+		boolean isCancelled();
+	}
+
+	/** The minimum number of rows of a band. */
+	private final static int MIN_BAND_ROWS = 8;
+
+	/** The number of bands per thread, to balance uneven rows. */
+	private final static int BANDS_PER_THREAD = 4;
+
+	/** The thread counter, for the threads names. */
+	private final static AtomicInteger THREAD_COUNT = new AtomicInteger(0);
+
+	/** The parallelism. */
+	private final int parallelism;
+
+	/** The pool, null when everything runs on the calling thread. */
+	private final ExecutorService pool;
+
+	/** True if the pool belongs to another executor. */
+	private final boolean view;
+
+	/** The cancellable checked before each band, may be null. */
+	private final Cancellable cancellable;
+
+	/** The run measuring the bands processed by the pool, may be null. */
+	private final FilterStatistics.Run run;
+
+	/** The number of background jobs using the pool, see {@link #acquire()}. */
+	private int users;
+
+	/** True once the pool must stop, as soon as it has no more users. */
+	private boolean retired;
+
+	/**
+	 * Instantiates a new band executor sharing the pool of another one.
+	 */
+	private BandExecutor(BandExecutor shared, Cancellable cancellable, FilterStatistics.Run run) {
+		super();
+
+		this.parallelism = shared.parallelism;
+		this.pool = shared.pool;
+		this.view = true;
+		this.cancellable = cancellable;
+		this.run = run;
+	}
+
+	/**
+	 * Instantiates a new band executor.
+	 *
+	 * @param parallelism
+	 *            the number of threads
+	 */
+	BandExecutor(int parallelism) {
+		super();
+
+		this.view = false;
+		this.cancellable = null;
+		this.run = null;
+		this.parallelism = Math.max(1, parallelism);
+
+		if (this.parallelism > 1) {
+			pool = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ColorPickerThreshold-" + THREAD_COUNT.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			pool = null;
+		}
+	}
+
+	/**
+	 * Gets the default parallelism.
+	 *
+	 * @return the number of available processors
+	 */
+	static int getDefaultParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Gets the parallelism.
+	 *
+	 * @return the parallelism
+	 */
+	int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Gets an executor using the same threads, that stops processing bands
+	 * as soon as the cancellable is cancelled.
+	 *
+	 * @param cancellable
+	 *            the cancellable
+	 * @return the cancellable executor
+	 */
+	BandExecutor cancellable(Cancellable cancellable) {
+		return new BandExecutor(this, cancellable, run);
+	}
+
+	/**
+	 * Gets an executor using the same threads, that adds the CPU time and
+	 * the allocations of the bands processed by the pool to a run.
+	 *
+	 * @param run
+	 *            the run
+	 * @return the measured executor
+	 */
+	BandExecutor measured(FilterStatistics.Run run) {
+		return new BandExecutor(this, cancellable, run);
+	}
+
+	/**
+	 * Processes all the rows and waits for the end of the work.
+	 *
+	 * @param nbRows
+	 *            the number of rows
+	 * @param task
+	 *            the task
+	 * @throws SignatureException
+	 *             the signature exception
+	 * @throws CancellationException
+	 *             if the cancellable of this executor has been cancelled
+	 */
+	void execute(int nbRows, final BandTask task) throws SignatureException {
+		int bandRows = Math.max(MIN_BAND_ROWS, (int) Math.ceil((double) nbRows / (double) (parallelism * BANDS_PER_THREAD)));
+
+		if (pool == null) {
+			for (int first = 0; first < nbRows; first += bandRows) {
+				checkCancelled();
+				task.process(first, Math.min(nbRows, first + bandRows));
+			}
+			return;
+		}
+
+		if (bandRows >= nbRows) {
+			checkCancelled();
+			task.process(0, nbRows);
+			return;
+		}
+
+		List<Future<Void>> bands = new ArrayList<Future<Void>>();
+		for (int first = 0; first < nbRows; first += bandRows) {
+			final int firstRow = first;
+			final int lastRow = Math.min(nbRows, first + bandRows);
+			bands.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					checkCancelled();
+					if (run == null) {
+						task.process(firstRow, lastRow);
+					} else {
+						long cpu = FilterStatistics.currentThreadCpuTime();
+						long allocated = FilterStatistics.currentThreadAllocatedBytes();
+						task.process(firstRow, lastRow);
+						run.addBand(FilterStatistics.currentThreadCpuTime() - cpu, FilterStatistics.currentThreadAllocatedBytes() - allocated);
+					}
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> band : bands) {
+				band.get();
+			}
+		} catch (InterruptedException e) {
+			cancel(bands);
+			Thread.currentThread().interrupt();
+			throw new SignatureException("Filtering interrupted");
+		} catch (ExecutionException e) {
+			cancel(bands);
+			Throwable cause = e.getCause();
+			if (cause instanceof SignatureException) {
+				throw (SignatureException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Throws a CancellationException if the work has been cancelled.
+	 */
+	private void checkCancelled() {
+		if ((cancellable != null) && cancellable.isCancelled()) {
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * Cancels the bands that are not done yet.
+	 *
+	 * @param bands
+	 *            the bands
+	 */
+	private void cancel(List<Future<Void>> bands) {
+		for (Future<Void> band : bands) {
+			band.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops the threads. Does nothing on a cancellable or measured executor,
+	 * the threads belong to the executor it has been created from.
+	 */
+	void shutdown() {
+		if ((pool != null) && !view) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Registers a background job using this executor, so that the threads
+	 * are not stopped under it by {@link #retire()}.
+	 * 
+	 * @return false, if the executor is already retired and must not be
+	 *         used
+	 */
+	synchronized boolean acquire() {
+		if (retired) {
+			return false;
+		}
+		users++;
+		return true;
+	}
+
+	/**
+	 * Unregisters a background job registered by {@link #acquire()}, stopping
+	 * the threads if the executor is retired and this was the last job.
+	 */
+	synchronized void release() {
+		users--;
+		if (retired && (users == 0)) {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops the threads once the background jobs using them are done. New
+	 * jobs can't acquire the executor anymore.
+	 */
+	synchronized void retire() {
+		retired = true;
+		if (users == 0) {
+			shutdown();
+		}
+	}
+}
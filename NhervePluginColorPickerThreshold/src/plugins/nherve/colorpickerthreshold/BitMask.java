@@ -0,0 +1,441 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.mask.Mask;
+
+/**
+ * A binary mask storing one bit per pixel, in longs. Each row starts on a
+ * new word, so that the bands of rows given to the threads of a
+ * {@link BandExecutor} never share a word, and the filters write 64 pixels
+ * at once through {@link MaskWriter}. In a word, the leftmost
+ * pixel is the most significant bit, the layout of the 1 bit images of
+ * Java2D. A {@link Mask}, one byte per pixel, is only created for the Icy
+ * APIs that need one.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class BitMask implements MaskWriter {
+
+	/** The number of pixels per word. */
+	final static int WORD_SIZE = 64;
+
+	/** The width. */
+	private final int width;
+
+	/** The height. */
+	private final int height;
+
+	/** The number of words of a row. */
+	private final int stride;
+
+	/** The words. */
+	private final long[] words;
+
+	/** The label. */
+	private String label;
+
+	/** The color of the kept pixels. */
+	private Color color;
+
+	/**
+	 * Instantiates a new, empty, bit mask.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 */
+	BitMask(int width, int height) {
+		super();
+
+		this.width = width;
+		this.height = height;
+		this.stride = (width + WORD_SIZE - 1) / WORD_SIZE;
+		this.words = new long[stride * height];
+	}
+
+	/**
+	 * Gets the bit of a pixel in its word.
+	 * 
+	 * @param x
+	 *            the column of the pixel
+	 * @return the bit
+	 */
+	static long bit(int x) {
+		return Long.MIN_VALUE >>> (x & (WORD_SIZE - 1));
+	}
+
+	/**
+	 * Checks if a pixel is kept.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return true, if it is kept
+	 */
+	boolean get(int x, int y) {
+		return (words[y * stride + x / WORD_SIZE] & bit(x)) != 0;
+	}
+
+	/**
+	 * Keeps a pixel. Writing pixels of a same word from several threads is
+	 * not safe, whole rows are.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 */
+	void set(int x, int y) {
+		words[y * stride + x / WORD_SIZE] |= bit(x);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see plugins.nherve.colorpickerthreshold.MaskWriter#setWord(int, int,
+	 * long)
+	 */
+	@Override
+	public void setWord(int y, int word, long bits) {
+		words[y * stride + word] = bits;
+	}
+
+	/**
+	 * Gets the 64 pixels of a word at once.
+	 * 
+	 * @param y
+	 *            the row
+	 * @param word
+	 *            the index of the word in the row, x / WORD_SIZE
+	 * @return the bits, see {@link #bit(int)}
+	 */
+	long getWord(int y, int word) {
+		return words[y * stride + word];
+	}
+
+	/**
+	 * Keeps the pixels from x (inclusive) to end (exclusive) of a row.
+	 * 
+	 * @param y
+	 *            the row
+	 * @param x
+	 *            the first column
+	 * @param end
+	 *            the last column, exclusive
+	 */
+	void setRange(int y, int x, int end) {
+		if (x >= end) {
+			return;
+		}
+		int offset = y * stride;
+		int first = x / WORD_SIZE;
+		int last = (end - 1) / WORD_SIZE;
+		long firstBits = -1L >>> (x & (WORD_SIZE - 1));
+		long lastBits = -1L << (WORD_SIZE - 1 - ((end - 1) & (WORD_SIZE - 1)));
+		if (first == last) {
+			words[offset + first] |= firstBits & lastBits;
+			return;
+		}
+		words[offset + first] |= firstBits;
+		for (int i = first + 1; i < last; i++) {
+			words[offset + i] = -1L;
+		}
+		words[offset + last] |= lastBits;
+	}
+
+	/**
+	 * Copies the rows of another mask, of at most the same width, at a
+	 * column multiple of WORD_SIZE.
+	 * 
+	 * @param other
+	 *            the other mask
+	 * @param x
+	 *            the column, a multiple of WORD_SIZE
+	 * @param y
+	 *            the row
+	 */
+	void copy(BitMask other, int x, int y) {
+		for (int j = 0; j < other.height; j++) {
+			System.arraycopy(other.words, j * other.stride, words, (y + j) * stride + x / WORD_SIZE, other.stride);
+		}
+	}
+
+	/**
+	 * Creates a mask of half the size, a pixel of which is kept if any of the
+	 * 2 x 2 pixels it covers is, so that thin structures stay visible when
+	 * zoomed out.
+	 * 
+	 * @return the smaller mask, of the same label and color
+	 */
+	BitMask half() {
+		BitMask half = new BitMask((width + 1) / 2, (height + 1) / 2);
+		half.label = label;
+		half.color = color;
+		for (int y = 0; y < half.height; y++) {
+			int y0 = 2 * y * stride;
+			int y1 = Math.min(2 * y + 1, height - 1) * stride;
+			for (int word = 0; word < stride; word++) {
+				long bits = words[y0 + word] | words[y1 + word];
+				bits |= bits << 1;
+				long packed = 0;
+				for (int i = 0; i < WORD_SIZE / 2; i++) {
+					if ((bits & (Long.MIN_VALUE >>> (2 * i))) != 0) {
+						packed |= Long.MIN_VALUE >>> i;
+					}
+				}
+				half.words[y * half.stride + word / 2] |= ((word & 1) == 0) ? packed : packed >>> (WORD_SIZE / 2);
+			}
+		}
+		return half;
+	}
+
+	/**
+	 * Counts the kept pixels.
+	 * 
+	 * @return the number of kept pixels
+	 */
+	long count() {
+		long n = 0;
+		for (long w : words) {
+			n += Long.bitCount(w);
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the average color of the kept pixels of an image.
+	 * 
+	 * @param image
+	 *            the image
+	 * @return the average color, black if no pixel is kept
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	Color getAverageColor(IcyBufferedImage image) throws SignatureException {
+		ColorPlanes planes = ColorPlanes.of(image);
+		ImageRows rows = (planes == null) ? new ImageRows(image) : null;
+		double r = 0;
+		double g = 0;
+		double b = 0;
+		long n = 0;
+		for (int y = 0; y < height; y++) {
+			if (rows != null) {
+				rows.read(y);
+			}
+			for (int word = 0; word < stride; word++) {
+				long bits = words[y * stride + word];
+				while (bits != 0) {
+					int x = word * WORD_SIZE + Long.numberOfLeadingZeros(bits);
+					bits &= ~bit(x);
+					if (planes != null) {
+						int rgb = planes.rgb(y * width + x);
+						r += RGBLookupTable.red(rgb);
+						g += RGBLookupTable.green(rgb);
+						b += RGBLookupTable.blue(rgb);
+					} else {
+						r += rows.getRed(x);
+						g += rows.getGreen(x);
+						b += rows.getBlue(x);
+					}
+					n++;
+				}
+			}
+		}
+		if (n == 0) {
+			return Color.black;
+		}
+		return new Color(toColorComponent(r / n), toColorComponent(g / n), toColorComponent(b / n));
+	}
+
+	/**
+	 * Clamps an average native value to a component of a Color.
+	 */
+	private static int toColorComponent(double v) {
+		return Math.max(0, Math.min(255, (int) v));
+	}
+
+	/**
+	 * Creates a 1 bit image, transparent where the pixels are not kept and of
+	 * the color of the mask where they are.
+	 * 
+	 * @return the image
+	 */
+	BufferedImage toImage() {
+		byte[] r = { 0, (byte) color.getRed() };
+		byte[] g = { 0, (byte) color.getGreen() };
+		byte[] b = { 0, (byte) color.getBlue() };
+		byte[] a = { 0, (byte) 255 };
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(1, 2, r, g, b, a));
+
+		byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		int rowBytes = (width + 7) / 8;
+		for (int y = 0; y < height; y++) {
+			int idx = y * rowBytes;
+			int end = idx + rowBytes;
+			for (int word = 0; word < stride; word++) {
+				long bits = words[y * stride + word];
+				for (int shift = WORD_SIZE - 8; (shift >= 0) && (idx < end); shift -= 8) {
+					data[idx++] = (byte) (bits >>> shift);
+				}
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Creates the equivalent mask, one byte per pixel.
+	 * 
+	 * @return the mask
+	 */
+	Mask toMask() {
+		Mask m = new Mask(width, height, false);
+		fill(m.getBinaryData().getRawData(), BinaryIcyBufferedImage.TRUE);
+		m.setLabel(label);
+		m.setColor(color);
+		m.setOpacity(1f);
+		return m;
+	}
+
+	/**
+	 * Writes a value at the kept pixels of a one byte per pixel plane.
+	 * 
+	 * @param data
+	 *            the plane, of the size of the mask
+	 * @param value
+	 *            the value
+	 */
+	void fill(byte[] data, byte value) {
+		for (int y = 0; y < height; y++) {
+			for (int word = 0; word < stride; word++) {
+				long bits = words[y * stride + word];
+				while (bits != 0) {
+					int x = word * WORD_SIZE + Long.numberOfLeadingZeros(bits);
+					bits &= ~bit(x);
+					data[y * width + x] = value;
+				}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof BitMask)) {
+			return false;
+		}
+		BitMask o = (BitMask) obj;
+		return (width == o.width) && (height == o.height) && Arrays.equals(words, o.words);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(words);
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the number of words of a row.
+	 * 
+	 * @return the stride
+	 */
+	int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Gets the label.
+	 * 
+	 * @return the label
+	 */
+	String getLabel() {
+		return label;
+	}
+
+	/**
+	 * Sets the label.
+	 * 
+	 * @param label
+	 *            the new label
+	 */
+	void setLabel(String label) {
+		this.label = label;
+	}
+
+	/**
+	 * Gets the color.
+	 * 
+	 * @return the color of the kept pixels
+	 */
+	Color getColor() {
+		return color;
+	}
+
+	/**
+	 * Sets the color.
+	 * 
+	 * @param color
+	 *            the new color of the kept pixels
+	 */
+	void setColor(Color color) {
+		this.color = color;
+	}
+}
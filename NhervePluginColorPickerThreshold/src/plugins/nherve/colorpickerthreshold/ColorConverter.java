@@ -0,0 +1,251 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.Arrays;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * Converts packed RGB colors to a color space without allocating anything
+ * for each pixel. The values always come from {@link ColorSpaceTools}, so
+ * they are exactly the ones of the toolbox : RGB is converted with one table
+ * per channel, the other color spaces go through a small direct mapped cache
+ * of the last converted colors. The colors of the images that are not 8 bits
+ * ones are converted at their native scale, see
+ * {@link #convert(ImageRows, int, double[])}.
+ *
+ * A converter is not thread safe, each thread needs its own instance.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ColorConverter {
+
+	/** The number of bits of the cache index. */
+	private final static int CACHE_BITS = 12;
+
+	/** The cache mask. */
+	private final static int CACHE_MASK = (1 << CACHE_BITS) - 1;
+
+	/** The color space. */
+	private final int colorSpace;
+
+	/** True for the [0, 1] scale, false for the [0, 255] one. */
+	private final boolean unitScale;
+
+	/** The tables of each channel, only for RGB. */
+	private final double[][] channels;
+
+	/** The cached colors, -1 for an empty entry. */
+	private final int[] cacheKeys;
+
+	/** The cached components. */
+	private final double[] cacheValues;
+
+	/**
+	 * The cached native colors, three values per entry, created on the first
+	 * native color that is not an 8 bits one.
+	 */
+	private double[] nativeKeys;
+
+	/** The cached components of the native colors. */
+	private double[] nativeValues;
+
+	/**
+	 * Instantiates a new color converter.
+	 *
+	 * @param colorSpace
+	 *            the color space
+	 * @param unitScale
+	 *            true for components in [0, 1], false for [0, 255]
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	ColorConverter(int colorSpace, boolean unitScale) throws SignatureException {
+		super();
+
+		this.colorSpace = colorSpace;
+		this.unitScale = unitScale;
+
+		if (colorSpace == ColorSpaceTools.RGB) {
+			channels = new double[ColorSpaceTools.NB_COLOR_CHANNELS][256];
+			for (int v = 0; v < 256; v++) {
+				double[] cc = toolboxComponents(v, v, v);
+				for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+					channels[c][v] = cc[c];
+				}
+			}
+			cacheKeys = null;
+			cacheValues = null;
+		} else {
+			channels = null;
+			cacheKeys = new int[CACHE_MASK + 1];
+			Arrays.fill(cacheKeys, -1);
+			cacheValues = new double[(CACHE_MASK + 1) * ColorSpaceTools.NB_COLOR_CHANNELS];
+		}
+	}
+
+	/**
+	 * Converts a color.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @param components
+	 *            the array receiving the components
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void convert(int rgb, double[] components) throws SignatureException {
+		if (channels != null) {
+			components[0] = channels[0][(rgb >>> 16) & 0xFF];
+			components[1] = channels[1][(rgb >>> 8) & 0xFF];
+			components[2] = channels[2][rgb & 0xFF];
+			return;
+		}
+
+		int slot = (rgb ^ (rgb >>> CACHE_BITS)) & CACHE_MASK;
+		int offset = slot * ColorSpaceTools.NB_COLOR_CHANNELS;
+		if (cacheKeys[slot] != rgb) {
+			double[] cc = toolboxComponents((rgb >>> 16) & 0xFF, (rgb >>> 8) & 0xFF, rgb & 0xFF);
+			System.arraycopy(cc, 0, cacheValues, offset, ColorSpaceTools.NB_COLOR_CHANNELS);
+			cacheKeys[slot] = rgb;
+		}
+		components[0] = cacheValues[offset];
+		components[1] = cacheValues[offset + 1];
+		components[2] = cacheValues[offset + 2];
+	}
+
+	/**
+	 * Converts a pixel of the current row of an image that is not an 8 bits
+	 * one, at its native scale. The colors of integer components in
+	 * [0, 255] are converted as the packed ones. The other RGB colors are
+	 * scaled as the tables, the other colors are converted by the toolbox
+	 * from the image, through a direct mapped cache of the last ones.
+	 *
+	 * @param rows
+	 *            the rows of the image, the current one being read
+	 * @param x
+	 *            the x
+	 * @param components
+	 *            the array receiving the components
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void convert(ImageRows rows, int x, double[] components) throws SignatureException {
+		double r = rows.getRed(x);
+		double g = rows.getGreen(x);
+		double b = rows.getBlue(x);
+		if (isByte(r) && isByte(g) && isByte(b)) {
+			convert(RGBLookupTable.pack((int) r, (int) g, (int) b), components);
+			return;
+		}
+
+		if (channels != null) {
+			components[0] = r * channels[0][255] / 255;
+			components[1] = g * channels[1][255] / 255;
+			components[2] = b * channels[2][255] / 255;
+			return;
+		}
+
+		if (nativeKeys == null) {
+			nativeKeys = new double[(CACHE_MASK + 1) * ColorSpaceTools.NB_COLOR_CHANNELS];
+			Arrays.fill(nativeKeys, Double.NaN);
+			nativeValues = new double[(CACHE_MASK + 1) * ColorSpaceTools.NB_COLOR_CHANNELS];
+		}
+		long h = Double.doubleToLongBits(r) * 31 * 31 + Double.doubleToLongBits(g) * 31 + Double.doubleToLongBits(b);
+		int slot = (int) (h ^ (h >>> 32) ^ (h >>> CACHE_BITS)) & CACHE_MASK;
+		int offset = slot * ColorSpaceTools.NB_COLOR_CHANNELS;
+		if ((nativeKeys[offset] != r) || (nativeKeys[offset + 1] != g) || (nativeKeys[offset + 2] != b)) {
+			double[] cc = rows.toolboxComponents(x, colorSpace, unitScale);
+			System.arraycopy(cc, 0, nativeValues, offset, ColorSpaceTools.NB_COLOR_CHANNELS);
+			nativeKeys[offset] = r;
+			nativeKeys[offset + 1] = g;
+			nativeKeys[offset + 2] = b;
+		}
+		components[0] = nativeValues[offset];
+		components[1] = nativeValues[offset + 1];
+		components[2] = nativeValues[offset + 2];
+	}
+
+	/**
+	 * Checks if a native value is an 8 bits one.
+	 */
+	private static boolean isByte(double v) {
+		return (v >= 0) && (v <= 255) && (v == (int) v);
+	}
+
+	/**
+	 * Converts consecutive pixels of an image, one array per component.
+	 *
+	 * @param planes
+	 *            the planes of the image
+	 * @param offset
+	 *            the index of the first pixel
+	 * @param length
+	 *            the number of pixels
+	 * @param c0
+	 *            the first components
+	 * @param c1
+	 *            the second components
+	 * @param c2
+	 *            the third components
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void convert(ColorPlanes planes, int offset, int length, double[] c0, double[] c1, double[] c2) throws SignatureException {
+		if (channels != null) {
+			byte[] r = planes.getRed();
+			byte[] g = planes.getGreen();
+			byte[] b = planes.getBlue();
+			double[] t0 = channels[0];
+			double[] t1 = channels[1];
+			double[] t2 = channels[2];
+			for (int i = 0; i < length; i++) {
+				c0[i] = t0[r[offset + i] & 0xFF];
+			}
+			for (int i = 0; i < length; i++) {
+				c1[i] = t1[g[offset + i] & 0xFF];
+			}
+			for (int i = 0; i < length; i++) {
+				c2[i] = t2[b[offset + i] & 0xFF];
+			}
+			return;
+		}
+
+		double[] cc = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+		for (int i = 0; i < length; i++) {
+			convert(planes.rgb(offset + i), cc);
+			c0[i] = cc[0];
+			c1[i] = cc[1];
+			c2[i] = cc[2];
+		}
+	}
+
+	/**
+	 * Gets the components computed by the toolbox.
+	 */
+	private double[] toolboxComponents(int r, int g, int b) throws SignatureException {
+		if (unitScale) {
+			return ColorSpaceTools.getColorComponentsD_0_1(colorSpace, r, g, b);
+		}
+		return ColorSpaceTools.getColorComponentsD_0_255(colorSpace, r, g, b);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.Arrays;
+
+/**
+ * The distinct packed RGB colors of an image, in an open addressing hash
+ * table of primitive ints. Each color gets an index, in order of first
+ * appearance, so that a result computed once per distinct color can be
+ * scattered back to all the pixels.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ColorDictionary {
+
+	/** The empty slot marker, never a packed 24 bits color. */
+	private final static int EMPTY = -1;
+
+	/** The initial capacity. */
+	private final static int INITIAL_CAPACITY = 1 << 12;
+
+	/** The colors of the slots. */
+	private int[] keys;
+
+	/** The indexes of the colors of the slots. */
+	private int[] values;
+
+	/** The distinct colors, by index. */
+	private int[] colors;
+
+	/** The number of distinct colors. */
+	private int size;
+
+	/**
+	 * Instantiates a new, empty, color dictionary.
+	 */
+	ColorDictionary() {
+		super();
+
+		allocate(INITIAL_CAPACITY);
+		colors = new int[INITIAL_CAPACITY / 2];
+		size = 0;
+	}
+
+	/**
+	 * Builds the dictionary of an image.
+	 *
+	 * @param planes
+	 *            the planes of the image
+	 * @return the dictionary
+	 */
+	static ColorDictionary of(ColorPlanes planes) {
+		ColorDictionary dict = new ColorDictionary();
+		int nb = planes.getWidth() * planes.getHeight();
+		int last = EMPTY;
+		for (int idx = 0; idx < nb; idx++) {
+			int rgb = planes.rgb(idx);
+			if (rgb != last) {
+				dict.add(rgb);
+				last = rgb;
+			}
+		}
+		return dict;
+	}
+
+	/**
+	 * Adds a color, if not already there.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @return the index of the color
+	 */
+	int add(int rgb) {
+		int slot = slot(rgb);
+		if (keys[slot] == rgb) {
+			return values[slot];
+		}
+
+		if (size == colors.length) {
+			colors = Arrays.copyOf(colors, size * 2);
+		}
+		keys[slot] = rgb;
+		values[slot] = size;
+		colors[size] = rgb;
+		size++;
+
+		if (size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+
+		return size - 1;
+	}
+
+	/**
+	 * Gets the index of a color.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @return the index, or -1 if the color is not in the dictionary
+	 */
+	int indexOf(int rgb) {
+		int slot = slot(rgb);
+		return keys[slot] == rgb ? values[slot] : -1;
+	}
+
+	/**
+	 * Gets a color.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the packed RGB color
+	 */
+	int getColor(int index) {
+		return colors[index];
+	}
+
+	/**
+	 * Gets the number of distinct colors.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the slot of a color, or the empty slot where it should go.
+	 */
+	private int slot(int rgb) {
+		int mask = keys.length - 1;
+		int slot = mix(rgb) & mask;
+		while ((keys[slot] != EMPTY) && (keys[slot] != rgb)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Spreads the bits of a color, neighbouring colors are frequent.
+	 */
+	private static int mix(int rgb) {
+		int h = rgb * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity];
+	}
+
+	private void rehash(int capacity) {
+		allocate(capacity);
+		for (int i = 0; i < size; i++) {
+			int slot = slot(colors[i]);
+			keys[slot] = colors[i];
+			values[slot] = i;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * A k-d tree of reference colors, for the KNN method with large palettes.
+ * The branches are pruned with the L-infinity distance to their bounding
+ * box, which is a lower bound of any Lp distance, so the answers are exactly
+ * those of a linear scan with the same distance.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ColorIndex {
+
+	/** The maximum number of colors of a leaf. */
+	private final static int LEAF_SIZE = 8;
+
+	/**
+	 * The shrinking of the lower bounds, so that the rounding of a distance
+	 * computed with powers and roots can't make it lower than its bound.
+	 */
+	private final static double BOUND_SLACK = 1 - 1e-9;
+
+	/** The dimension. */
+	private final static int DIM = ColorSpaceTools.NB_COLOR_CHANNELS;
+
+	/** The colors, reordered so that each node covers a range. */
+	private final double[][] colors;
+
+	/** The first color of each node. */
+	private final int[] from;
+
+	/** The end of the colors of each node. */
+	private final int[] to;
+
+	/** The left child of each node, -1 for a leaf. */
+	private final int[] left;
+
+	/** The right child of each node, -1 for a leaf. */
+	private final int[] right;
+
+	/** The lower corner of the bounding box of each node. */
+	private final double[] min;
+
+	/** The upper corner of the bounding box of each node. */
+	private final double[] max;
+
+	/** The number of nodes. */
+	private int nbNodes;
+
+	/**
+	 * Builds the index.
+	 *
+	 * @param colors
+	 *            the color components, the array is not modified
+	 */
+	ColorIndex(double[][] colors) {
+		super();
+
+		this.colors = colors.clone();
+		int capacity = Math.max(1, 4 * colors.length / LEAF_SIZE + 1);
+		from = new int[capacity];
+		to = new int[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		min = new double[capacity * DIM];
+		max = new double[capacity * DIM];
+		nbNodes = 0;
+
+		build(0, this.colors.length);
+	}
+
+	/**
+	 * Builds the node of a range of colors.
+	 */
+	private int build(int f, int t) {
+		int node = nbNodes++;
+		from[node] = f;
+		to[node] = t;
+		left[node] = -1;
+		right[node] = -1;
+
+		int widest = 0;
+		double widestSize = -1;
+		for (int d = 0; d < DIM; d++) {
+			double lo = Double.POSITIVE_INFINITY;
+			double hi = Double.NEGATIVE_INFINITY;
+			for (int i = f; i < t; i++) {
+				lo = Math.min(lo, colors[i][d]);
+				hi = Math.max(hi, colors[i][d]);
+			}
+			min[node * DIM + d] = lo;
+			max[node * DIM + d] = hi;
+			if (hi - lo > widestSize) {
+				widestSize = hi - lo;
+				widest = d;
+			}
+		}
+
+		if ((t - f > LEAF_SIZE) && (widestSize > 0)) {
+			int m = (f + t) >>> 1;
+			select(f, t, m, widest);
+			left[node] = build(f, m);
+			right[node] = build(m, t);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Partially sorts a range so that the k-th color on a dimension is at its
+	 * place, with the smaller before and the greater after.
+	 */
+	private void select(int f, int t, int k, int d) {
+		int lo = f;
+		int hi = t - 1;
+		while (lo < hi) {
+			double pivot = colors[(lo + hi) >>> 1][d];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (colors[i][d] < pivot) {
+					i++;
+				}
+				while (colors[j][d] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					double[] tmp = colors[i];
+					colors[i] = colors[j];
+					colors[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the L-infinity distance from a color to the bounding box of a
+	 * node, slightly shrunk.
+	 */
+	private double lowerBound(int node, double[] cc) {
+		double lb = 0;
+		for (int d = 0; d < DIM; d++) {
+			double gap = Math.max(min[node * DIM + d] - cc[d], cc[d] - max[node * DIM + d]);
+			if (gap > lb) {
+				lb = gap;
+			}
+		}
+		return lb * BOUND_SLACK;
+	}
+
+	/**
+	 * Gets the distance to the nearest reference color.
+	 *
+	 * @param cc
+	 *            the color components
+	 * @param distance
+	 *            the distance
+	 * @return the minimum distance, infinite if there is no reference color
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	double nearest(double[] cc, ColorDistance distance) throws SignatureException {
+		if (colors.length == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return nearest(0, cc, distance, Double.POSITIVE_INFINITY);
+	}
+
+	private double nearest(int node, double[] cc, ColorDistance distance, double best) throws SignatureException {
+		if (left[node] < 0) {
+			for (int i = from[node]; i < to[node]; i++) {
+				double d = distance.computeDistance(cc, colors[i]);
+				if (d < best) {
+					best = d;
+				}
+			}
+			return best;
+		}
+
+		int first = left[node];
+		int second = right[node];
+		double lbFirst = lowerBound(first, cc);
+		double lbSecond = lowerBound(second, cc);
+		if (lbSecond < lbFirst) {
+			int tmp = first;
+			first = second;
+			second = tmp;
+			double lb = lbFirst;
+			lbFirst = lbSecond;
+			lbSecond = lb;
+		}
+		if (lbFirst <= best) {
+			best = nearest(first, cc, distance, best);
+		}
+		if (lbSecond <= best) {
+			best = nearest(second, cc, distance, best);
+		}
+		return best;
+	}
+
+	/**
+	 * Checks if a reference color is closer than a threshold.
+	 *
+	 * @param cc
+	 *            the color components
+	 * @param distance
+	 *            the distance
+	 * @param threshold
+	 *            the threshold
+	 * @return true, if the distance to one of the reference colors is lower
+	 *         than the threshold
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	boolean isCloserThan(double[] cc, ColorDistance distance, double threshold) throws SignatureException {
+		if (colors.length == 0) {
+			return false;
+		}
+		return isCloserThan(0, cc, distance, threshold);
+	}
+
+	private boolean isCloserThan(int node, double[] cc, ColorDistance distance, double threshold) throws SignatureException {
+		if (lowerBound(node, cc) >= threshold) {
+			return false;
+		}
+		if (left[node] < 0) {
+			for (int i = from[node]; i < to[node]; i++) {
+				if (distance.computeDistance(cc, colors[i]) < threshold) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return isCloserThan(left[node], cc, distance, threshold) || isCloserThan(right[node], cc, distance, threshold);
+	}
+}
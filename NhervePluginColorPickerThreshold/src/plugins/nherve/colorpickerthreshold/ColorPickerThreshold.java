@@ -25,8 +25,12 @@ import icy.gui.util.GuiUtil;
 import icy.image.IcyBufferedImage;
 import icy.main.Icy;
 import icy.painter.Painter;
+import icy.roi.ROI2D;
 import icy.roi.ROI2DArea;
 import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
 import icy.swimmingPool.SwimmingObject;
 import icy.type.TypeUtil;
 
@@ -36,6 +40,7 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
@@ -44,16 +49,29 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.swing.Box;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JSlider;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.JTabbedPane;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ChangeEvent;
@@ -61,19 +79,10 @@ import javax.swing.event.ChangeListener;
 
 import plugins.nherve.toolbox.Algorithm;
 import plugins.nherve.toolbox.NherveToolbox;
-import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.ColorDistance;
 import plugins.nherve.toolbox.image.feature.L1ColorDistance;
 import plugins.nherve.toolbox.image.feature.L2ColorDistance;
-import plugins.nherve.toolbox.image.feature.SegmentableIcyBufferedImage;
-import plugins.nherve.toolbox.image.feature.descriptor.ColorPixel;
-import plugins.nherve.toolbox.image.feature.learning.SVMClassifier;
-import plugins.nherve.toolbox.image.feature.region.IcyPixel;
-import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
-import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
-import plugins.nherve.toolbox.image.feature.signature.VectorSignature;
-import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskException;
 import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
 import plugins.nherve.toolbox.libsvm.svm;
@@ -203,10 +212,8 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 
 		private static final long serialVersionUID = -2779071071132708790L;
 
-		/** The colors. */
-		private Color[] colors;
-		/** The nb colors. */
-		private int nbColors;
+		/** The colors, only the first ones are displayed. */
+		private ArrayList<Color> colors;
 		/** The threshold. */
 		private int threshold;
 
@@ -217,10 +224,13 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 
 		private JButton btInitColors;
 
+		/** The number of colors, when they don't all fit in the grid. */
+		private JLabel lbNbColors;
+
 		public ColorBox(String label) {
 			super();
 
-			colors = new Color[COL_GRID_MAXCOLORS];
+			colors = new ArrayList<Color>();
 			listeners = new ArrayList<ColorBoxListener>();
 
 			selector = new ColorSelector(this);
@@ -228,7 +238,8 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 			btInitColors.setEnabled(false);
 			btInitColors.addActionListener(this);
 
-			JPanel p1 = GuiUtil.createLineBoxPanel(new JLabel(label), Box.createHorizontalGlue(), btInitColors);
+			lbNbColors = new JLabel();
+			JPanel p1 = GuiUtil.createLineBoxPanel(new JLabel(label), Box.createHorizontalGlue(), lbNbColors, Box.createHorizontalStrut(5), btInitColors);
 			JPanel p2 = GuiUtil.createPageBoxPanel(selector, Box.createVerticalGlue(), p1);
 			add(p2);
 
@@ -242,20 +253,48 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 *            the c
 		 */
 		public void addColor(int[] c) {
-			if (nbColors < COL_GRID_MAXCOLORS) {
-				colors[nbColors] = new Color(c[0], c[1], c[2]);
-				nbColors++;
+			colors.add(new Color(c[0], c[1], c[2]));
+			colorsHaveChanged();
+		}
+
+		/**
+		 * Adds many colors at once, for harvested palettes.
+		 * 
+		 * @param packed
+		 *            the packed RGB colors
+		 */
+		public void addColors(int[] packed) {
+			if (packed.length == 0) {
+				return;
+			}
+			colors.ensureCapacity(colors.size() + packed.length);
+			for (int rgb : packed) {
+				colors.add(new Color(rgb & 0xFFFFFF));
+			}
+			colorsHaveChanged();
+		}
+
+		/**
+		 * Updates the interface and fires a change event after the colors
+		 * have changed.
+		 */
+		private void colorsHaveChanged() {
+			boolean any = !colors.isEmpty();
+			if (any) {
 				btFilter.setEnabled(true);
 				btKeepMask.setEnabled(true);
 				btAsROI.setEnabled(true);
-				btInitColors.setEnabled(true);
-				repaint();
-				fireFilterParametersChangeEvent();
+				btSequence.setEnabled(true);
 			}
+			btInitColors.setEnabled(any);
+			lbNbColors.setText(colors.size() > COL_GRID_MAXCOLORS ? colors.size() + " colors" : "");
+			repaint();
+			fireFilterParametersChangeEvent();
 		}
 
 		public Color getColor(int row, int col) {
-			return colors[row * COL_GRID_WIDTH + col];
+			int idx = row * COL_GRID_WIDTH + col;
+			return idx < colors.size() ? colors.get(idx) : getBackground();
 		}
 
 		/**
@@ -291,19 +330,33 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 * @return the average color
 		 */
 		public Color getAverageColor() {
-			int r = 0;
-			int g = 0;
-			int b = 0;
-			for (int k = 0; k < nbColors; k++) {
-				r += colors[k].getRed();
-				g += colors[k].getGreen();
-				b += colors[k].getBlue();
+			long r = 0;
+			long g = 0;
+			long b = 0;
+			for (Color c : colors) {
+				r += c.getRed();
+				g += c.getGreen();
+				b += c.getBlue();
 			}
-			r /= nbColors;
-			g /= nbColors;
-			b /= nbColors;
+			r /= colors.size();
+			g /= colors.size();
+			b /= colors.size();
 
-			return new Color(r, g, b);
+			return new Color((int) r, (int) g, (int) b);
+		}
+
+		/**
+		 * Gets the packed RGB colors.
+		 * 
+		 * @return the packed RGB colors
+		 */
+		public int[] getPackedColors() {
+			int[] packed = new int[colors.size()];
+			for (int k = 0; k < packed.length; k++) {
+				Color c = colors.get(k);
+				packed[k] = RGBLookupTable.pack(c.getRed(), c.getGreen(), c.getBlue());
+			}
+			return packed;
 		}
 
 		/**
@@ -319,10 +372,8 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 * Inits the colors.
 		 */
 		public void initColors() {
-			nbColors = 0;
-			for (int i = 0; i < COL_GRID_MAXCOLORS; i++) {
-				colors[i] = getBackground();
-			}
+			colors.clear();
+			lbNbColors.setText("");
 			repaint();
 			fireFilterParametersChangeEvent();
 		}
@@ -350,17 +401,9 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		public void removeColor(int row, int col) {
 			if ((row < COL_GRID_HEIGHT) && (col < COL_GRID_WIDTH)) {
 				int idx = row * COL_GRID_WIDTH + col;
-				if (idx < nbColors) {
-					for (int c = idx; (c < nbColors) && (c < COL_GRID_MAXCOLORS - 1); c++) {
-						colors[c] = colors[c + 1];
-					}
-					colors[nbColors - 1] = getBackground();
-					nbColors--;
-					if (nbColors == 0) {
-						btInitColors.setEnabled(false);
-					}
-					repaint();
-					fireFilterParametersChangeEvent();
+				if (idx < colors.size()) {
+					colors.remove(idx);
+					colorsHaveChanged();
 				}
 			}
 		}
@@ -427,20 +470,63 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	 * 
 	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
 	 */
-	class ColorPickerThresholdPainter implements Painter, ColorBoxListener {
+	class ColorPickerThresholdPainter implements Painter, ColorBoxListener, SequenceListener {
 
 		/** The mask. */
-		private Mask mask;
+		private BitMask mask;
+
+		/** The rendered mask, created on the first paint. */
+		private MaskOverlay overlay;
+
+		/** The mask computed only where it is looked at, for large images. */
+		private TiledMask tiledMask;
+
+		/**
+		 * The image of the sequence indexed by color, with the palettes of
+		 * the color spaces and scales used, dropped by the garbage collector
+		 * when memory runs low.
+		 */
+		private volatile SoftReference<IndexedImage> indexedImage;
+
+		/**
+		 * The distance map of the KNN method, kept while only the threshold
+		 * changes. Only set once complete, so that it can be read without
+		 * waiting for the map being computed.
+		 */
+		private volatile DistanceMap distanceMap;
+
+		/**
+		 * Incremented each time the cached data is dropped, so that the data
+		 * computed meanwhile from the previous images is not kept.
+		 */
+		private final AtomicInteger generation;
+
+		/**
+		 * The distance maps of the tiles of the KNN method without lookup
+		 * table, for large images, kept while only the threshold changes.
+		 */
+		private volatile TiledDistanceMap tiledDistanceMap;
+
+		/** The key of the threshold suggestion job of the painter. */
+		private final Object suggestion;
 
 		/** The sequence. */
 		private Sequence sequence;
 
+		/** The colors of the current brush stroke, null if none. */
+		private ColorSampler brush;
+
+		/** The color box that receives the current brush stroke. */
+		private ColorBox brushBox;
+
 		/**
 		 * Instantiates a new color picker threshold painter.
 		 */
 		public ColorPickerThresholdPainter() {
 			super();
 
+			generation = new AtomicInteger(0);
+			suggestion = new Object();
 			setMask(null);
 			setSequence(null);
 		}
@@ -454,6 +540,7 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 */
 		@Override
 		public void cancelFilter() {
+			scheduler.cancel(this);
 			setMask(null);
 			displayParametersHaveChanged();
 		}
@@ -480,11 +567,7 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		@Override
 		public void filterParametersHaveChanged() {
 			if (cbAuto.isSelected()) {
-				try {
-					doFilter(this);
-				} catch (SignatureException e1) {
-					Algorithm.err(e1);
-				}
+				doFilterInBackground(this);
 			}
 		}
 
@@ -509,12 +592,173 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 			return c;
 		}
 
+		/**
+		 * Gets the distance map for the KNN parameters, computing it only if
+		 * the colors, the color space, the distance or the image have changed
+		 * since the last call, and only updating it when a single color has
+		 * been added or removed.
+		 * 
+		 * @param parameters
+		 *            the KNN parameters
+		 * @param image
+		 *            the image
+		 * @param executor
+		 *            the executor
+		 * @return the distance map
+		 * @throws SignatureException
+		 *             the signature exception
+		 */
+		public synchronized DistanceMap getDistanceMap(FilterParameters parameters, IcyBufferedImage image, BandExecutor executor) throws SignatureException {
+			int current = generation.get();
+			DistanceMap map = distanceMap;
+			if ((map == null) || !map.isComputedFor(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance())) {
+				distanceMap = null;
+				ConvertedPlanes converted = getConvertedPlanes(image, parameters.getColorSpace(), false, executor);
+				if ((map != null) && map.canUpdate(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance())) {
+					map = map.update(parameters.getColors(), converted, executor);
+				} else {
+					map = DistanceMap.compute(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance(), converted, executor);
+				}
+				distanceMap = map;
+				if (generation.get() != current) {
+					distanceMap = null;
+				}
+			}
+			return map;
+		}
+
+		/**
+		 * Gets the image converted to a color space. The image is indexed
+		 * only if it has changed since the last call, or if the garbage
+		 * collector has reclaimed the previous index, and the distinct colors
+		 * are converted only the first time a color space and scale are used.
+		 * 
+		 * @param image
+		 *            the image
+		 * @param colorSpace
+		 *            the color space
+		 * @param unitScale
+		 *            true for components in [0, 1], false for [0, 255]
+		 * @param executor
+		 *            the executor
+		 * @return the converted planes, null when converting the whole image
+		 *         is not worth it
+		 * @throws SignatureException
+		 *             the signature exception
+		 */
+		public synchronized ConvertedPlanes getConvertedPlanes(IcyBufferedImage image, int colorSpace, boolean unitScale, BandExecutor executor) throws SignatureException {
+			if (!ConvertedPlanes.isWorthIt(image, colorSpace)) {
+				return null;
+			}
+			int current = generation.get();
+			SoftReference<IndexedImage> reference = indexedImage;
+			IndexedImage indexed = (reference != null) ? reference.get() : null;
+			if ((indexed == null) || !indexed.isIndexOf(image)) {
+				indexedImage = null;
+				indexed = IndexedImage.index(image);
+				if (indexed == null) {
+					return null;
+				}
+				indexedImage = new SoftReference<IndexedImage>(indexed);
+				if (generation.get() != current) {
+					indexedImage = null;
+				}
+			}
+			return ConvertedPlanes.convert(indexed, colorSpace, unitScale, executor);
+		}
+
+		/**
+		 * Checks if the distance map for the KNN parameters can be derived
+		 * from the one already computed, a single color having been added or
+		 * removed since.
+		 * 
+		 * @param parameters
+		 *            the KNN parameters
+		 * @param image
+		 *            the image
+		 * @return true, if {@link #getDistanceMap} will only update the map
+		 */
+		public boolean canUpdateDistanceMap(FilterParameters parameters, IcyBufferedImage image) {
+			DistanceMap map = distanceMap;
+			return (map != null) && map.canUpdate(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance());
+		}
+
+		/**
+		 * Gets the distance map for the KNN parameters, if it is already
+		 * computed. Doesn't wait for a map being computed, so it can be
+		 * called from the event dispatch thread.
+		 * 
+		 * @param parameters
+		 *            the KNN parameters
+		 * @param image
+		 *            the image
+		 * @return the distance map, null if it is not computed
+		 */
+		public DistanceMap getComputedDistanceMap(FilterParameters parameters, IcyBufferedImage image) {
+			DistanceMap map = distanceMap;
+			return ((map != null) && map.isComputedFor(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance())) ? map : null;
+		}
+
+		/**
+		 * Checks if the distance map for the KNN parameters is already
+		 * computed.
+		 * 
+		 * @param parameters
+		 *            the KNN parameters
+		 * @param image
+		 *            the image
+		 * @return true, if {@link #getDistanceMap} won't compute anything
+		 */
+		public boolean hasDistanceMap(FilterParameters parameters, IcyBufferedImage image) {
+			DistanceMap map = distanceMap;
+			return (map != null) && map.isComputedFor(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance());
+		}
+
+		/**
+		 * Gets the distance maps of the tiles for the KNN parameters,
+		 * starting with no tile if the colors, the color space, the distance
+		 * or the image have changed since the last call.
+		 * 
+		 * @param parameters
+		 *            the KNN parameters
+		 * @param image
+		 *            the image
+		 * @return the distance maps of the tiles
+		 */
+		public TiledDistanceMap getTiledDistanceMap(FilterParameters parameters, IcyBufferedImage image) {
+			int current = generation.get();
+			TiledDistanceMap levels = tiledDistanceMap;
+			if ((levels == null) || !levels.isComputedFor(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance())) {
+				levels = new TiledDistanceMap(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance());
+				tiledDistanceMap = levels;
+				if (generation.get() != current) {
+					tiledDistanceMap = null;
+				}
+			}
+			return levels;
+		}
+
+		/**
+		 * Drops the cached data computed from the images of the sequence, and
+		 * cancels the background filtering. Doesn't wait for a distance map
+		 * being computed, the map is dropped once done.
+		 */
+		public void invalidateCache() {
+			scheduler.cancel(this);
+			scheduler.cancel(suggestion);
+			generation.incrementAndGet();
+			distanceMap = null;
+			tiledDistanceMap = null;
+			indexedImage = null;
+			dropTiledMask();
+		}
+
 		/**
 		 * Gets the mask.
 		 * 
 		 * @return the mask
 		 */
-		public Mask getMask() {
+		public BitMask getMask() {
 			return mask;
 		}
 
@@ -594,7 +838,29 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 */
 		@Override
 		public void mouseDrag(MouseEvent e, Point2D imagePoint, IcyCanvas canvas) {
+			if (!e.isShiftDown()) {
+				return;
+			}
 
+			if (brush == null) {
+				int comp = tabbedPane.getSelectedIndex();
+				if (comp == 0) {
+					brushBox = m1ColorBox;
+				} else if (SwingUtilities.isLeftMouseButton(e)) {
+					brushBox = m2PosColorBox;
+				} else {
+					brushBox = m2NegColorBox;
+				}
+				brush = new ColorSampler();
+			}
+
+			Point pt = TypeUtil.toPoint(imagePoint);
+			try {
+				harvest(brush, getSequence().getFirstImage(), new Rectangle(pt.x - BRUSH_RADIUS, pt.y - BRUSH_RADIUS, 2 * BRUSH_RADIUS + 1, 2 * BRUSH_RADIUS + 1), null);
+			} catch (SignatureException ex) {
+				Algorithm.err(ex);
+			}
+			e.consume();
 		}
 
 		/*
@@ -627,7 +893,11 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 */
 		@Override
 		public void mouseReleased(MouseEvent e, Point2D imagePoint, IcyCanvas canvas) {
-
+			if (brush != null) {
+				brushBox.addColors(brush.getPalette(HARVEST_PALETTE_SIZE));
+				brush = null;
+				brushBox = null;
+			}
 		}
 
 		/*
@@ -638,8 +908,33 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 */
 		@Override
 		public void paint(Graphics2D g, Sequence sequence, IcyCanvas canvas) {
-			if ((getMask() != null) && (cbShow.isSelected())) {
-				getMask().paint(g);
+			if (!cbShow.isSelected()) {
+				return;
+			}
+			Rectangle area = g.getClipBounds();
+			if (area == null) {
+				area = new Rectangle(0, 0, sequence.getWidth(), sequence.getHeight());
+			}
+			int step = TiledMask.getStep(g.getTransform().getScaleX());
+
+			BitMask m = getMask();
+			if (m != null) {
+				MaskOverlay o = overlay;
+				if ((o == null) || !o.isBuiltFor(m)) {
+					o = new MaskOverlay(m);
+					overlay = o;
+				}
+				o.paint(g, area, step);
+				return;
+			}
+
+			TiledMask tiled = tiledMask;
+			if (tiled != null) {
+				tiled.paint(g, area);
+				List<Long> missing = tiled.getMissingTiles(step, area);
+				if (!missing.isEmpty() && tiled.request(missing)) {
+					computeTiles(this, tiled, missing);
+				}
 			}
 		}
 
@@ -649,8 +944,43 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 * @param mask
 		 *            the new mask
 		 */
-		public void setMask(Mask mask) {
+		public void setMask(BitMask mask) {
+			dropTiledMask();
 			this.mask = mask;
+			this.overlay = null;
+		}
+
+		/**
+		 * Sets a mask computed only where it is looked at.
+		 * 
+		 * @param tiledMask
+		 *            the new tiled mask
+		 */
+		public void setTiledMask(TiledMask tiledMask) {
+			dropTiledMask();
+			this.mask = null;
+			this.overlay = null;
+			this.tiledMask = tiledMask;
+		}
+
+		/**
+		 * Gets the tiled mask.
+		 * 
+		 * @return the tiled mask, null if the mask is a plain one
+		 */
+		public TiledMask getTiledMask() {
+			return tiledMask;
+		}
+
+		/**
+		 * Stops computing the tiles of the tiled mask, and forgets it.
+		 */
+		private void dropTiledMask() {
+			TiledMask tiled = tiledMask;
+			if (tiled != null) {
+				scheduler.cancel(tiled);
+				tiledMask = null;
+			}
 		}
 
 		/**
@@ -660,7 +990,49 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		 *            the new sequence
 		 */
 		public void setSequence(Sequence sequence) {
+			if (this.sequence != null) {
+				this.sequence.removeListener(this);
+			}
 			this.sequence = sequence;
+			if (sequence != null) {
+				sequence.addListener(this);
+			}
+			invalidateCache();
+		}
+
+		/**
+		 * Stops listening to the sequence and drops the cached data, when the
+		 * plugin stops.
+		 */
+		public void dispose() {
+			if (sequence != null) {
+				sequence.removeListener(this);
+			}
+			invalidateCache();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * icy.sequence.SequenceListener#sequenceChanged(icy.sequence.SequenceEvent
+		 * )
+		 */
+		@Override
+		public void sequenceChanged(SequenceEvent sequenceEvent) {
+			if (sequenceEvent.getSourceType() == SequenceEventSourceType.SEQUENCE_DATA) {
+				invalidateCache();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see icy.sequence.SequenceListener#sequenceClosed(icy.sequence.Sequence)
+		 */
+		@Override
+		public void sequenceClosed(Sequence sequence) {
+			invalidateCache();
 		}
 
 	}
@@ -681,7 +1053,16 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	private final static Dimension COL_DIM = new Dimension(COL_GRID_WIDTH * (COL_FULL_BLOCK_SIZE + COL_BLOCK_SPACER) - 1, COL_GRID_HEIGHT * (COL_FULL_BLOCK_SIZE + COL_BLOCK_SPACER) - 1);
 
 	/** The Constant COL_GRID_MAXCOLORS. */
-	private final static int COL_GRID_MAXCOLORS = COL_GRID_HEIGHT * COL_GRID_WIDTH;
+	final static int COL_GRID_MAXCOLORS = COL_GRID_HEIGHT * COL_GRID_WIDTH;
+
+	/** The maximum number of threads proposed for filtering. */
+	private final static int MAX_THREADS = 64;
+
+	/** The radius of the brush, in pixels. */
+	private final static int BRUSH_RADIUS = 3;
+
+	/** The number of colors kept from a brush stroke or from the ROIs. */
+	private final static int HARVEST_PALETTE_SIZE = 32;
 
 	/** The Constant METHOD_1. */
 	private final static String METHOD_1 = "KNN";
@@ -701,12 +1082,24 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	/** The bt as roi. */
 	private JButton btAsROI;
 
+	/** The bt whole sequence. */
+	private JButton btSequence;
+
+	/** The bt save parameters. */
+	private JButton btSaveParameters;
+
+	/** The bt harvest. */
+	private JButton btHarvest;
+
 	/** The bt minus. */
 	private JButton btMinus;
 
 	/** The bt plus. */
 	private JButton btPlus;
 
+	/** The bt suggest. */
+	private JButton btSuggest;
+
 	/** The col default dist. */
 	private int colDefaultDist;
 
@@ -725,6 +1118,9 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	/** The lb current. */
 	private JLabel lbCurrent;
 
+	/** The lb area. */
+	private JLabel lbArea;
+
 	/** The rb rgb. */
 	private JRadioButton rbRGB;
 
@@ -782,6 +1178,60 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	/** The cb auto. */
 	private JCheckBox cbAuto;
 
+	/** The cb progressive. */
+	private JCheckBox cbProgressive;
+
+	/** The progressive flag, read by the background jobs. */
+	private volatile boolean progressive;
+
+	/** The cb lookup table. */
+	private JCheckBox cbLookupTable;
+
+	/**
+	 * The lookup table, kept as long as the KNN parameters don't change.
+	 * Built under the plugin monitor, but read and cleared without it, so
+	 * that the event dispatch thread never waits for a build.
+	 */
+	private volatile RGBLookupTable lookupTable;
+
+	/** Gives the cached lookup table to the compiled filters. */
+	private final CompiledFilter.LookupTableProvider lookupTables = new CompiledFilter.LookupTableProvider() {
+		@Override
+		public RGBLookupTable getLookupTable(FilterParameters parameters, BandExecutor executor) throws SignatureException {
+			return ColorPickerThreshold.this.getLookupTable(parameters, executor);
+		}
+	};
+
+	/** The cb unique colors. */
+	private JCheckBox cbUniqueColors;
+
+	/** The cb decision grid. */
+	private JCheckBox cbDecisionGrid;
+
+	/** The sp threads. */
+	private JSpinner spThreads;
+
+	/**
+	 * The executor used to filter the images by bands of rows, replaced when
+	 * the number of threads changes.
+	 */
+	private volatile BandExecutor executor;
+
+	/** The scheduler of the background filtering of the Auto mode. */
+	private FilterScheduler scheduler;
+
+	/** The painters created, to stop them listening to their sequences. */
+	private List<ColorPickerThresholdPainter> painters;
+
+	/** The trained SVM models. */
+	private ModelCache models;
+
+	/** The statistics of the filter runs, also published through JMX. */
+	private FilterStatistics statistics;
+
+	/** The statistics of the last run. */
+	private JLabel lbStats;
+
 	/** The tabbed pane. */
 	private JTabbedPane tabbedPane;
 
@@ -815,7 +1265,7 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 			if (b == btFilter) {
 				if (hasCurrentSequence()) {
 					try {
-						doFilter(getCurrentSequencePainter());
+						doFilterOnDemand(getCurrentSequencePainter());
 					} catch (SignatureException e1) {
 						Algorithm.err(e1);
 					}
@@ -848,19 +1298,27 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 				return;
 			}
 
+			if (b == btSuggest) {
+				if (hasCurrentSequence()) {
+					FilterParameters parameters = getFilterParameters();
+					if ((parameters.getMethod() == FilterParameters.KNN) && (parameters.getColors().length > 0)) {
+						doSuggestInBackground(getCurrentSequencePainter(), parameters);
+					}
+				}
+				return;
+			}
+
 			if (b == btKeepMask) {
 				if (hasCurrentSequence()) {
-					Sequence currentSequence = getCurrentSequence();
 					try {
-						Mask m = doFilter(getCurrentSequencePainter());
+						BitMask m = doFilter(getCurrentSequencePainter());
 						if (m != null) {
-							SwimmingObject result = new SwimmingObject(m);
+							SwimmingObject result = new SwimmingObject(m.toMask());
 							Icy.getMainInterface().getSwimmingPool().add(result);
 						}
 					} catch (SignatureException e1) {
 						Algorithm.err(e1);
 					}
-					currentSequence.dataChanged();
 				}
 				return;
 			}
@@ -868,16 +1326,61 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 			if (b == btAsROI) {
 				if (hasCurrentSequence()) {
 					Sequence currentSequence = getCurrentSequence();
+					ColorPickerThresholdPainter painter = getCurrentSequencePainter();
+					FilterParameters parameters = getFilterParameters();
+					TiledMask tiled = painter.getTiledMask();
+					boolean shown = (tiled != null) && tiled.isBuiltFor(parameters, currentSequence.getFirstImage());
+					scheduler.cancel(painter);
 					try {
-						Mask m = doFilter(getCurrentSequencePainter());
-						if (m != null) {
-							ROI2DArea a = m.asROI2DArea(currentSequence);
+						ROI2DArea a = filterAsROI(painter, parameters, executor);
+						if (a != null) {
 							a.setName("From " + getName());
+							currentSequence.addROI(a);
 						}
 					} catch (SignatureException e1) {
 						Algorithm.err(e1);
 					}
-					currentSequence.dataChanged();
+					if (!shown && cbAuto.isSelected()) {
+						// the cancelled background filtering still has to
+						// show the mask of the parameters
+						doFilterInBackground(painter);
+					}
+				}
+				return;
+			}
+
+			if (b == btSequence) {
+				if (hasCurrentSequence()) {
+					doFilterSequence(getCurrentSequence());
+				}
+				return;
+			}
+
+			if (b == btHarvest) {
+				if (hasCurrentSequence()) {
+					Sequence currentSequence = getCurrentSequence();
+					ColorSampler sampler = new ColorSampler();
+					try {
+						for (ROI2D roi : currentSequence.getROI2Ds()) {
+							harvest(sampler, currentSequence.getFirstImage(), roi.getBounds(), roi);
+						}
+					} catch (SignatureException e1) {
+						Algorithm.err(e1);
+					}
+					ColorBox box = tabbedPane.getSelectedIndex() == 0 ? m1ColorBox : m2PosColorBox;
+					box.addColors(sampler.getPalette(HARVEST_PALETTE_SIZE));
+				}
+				return;
+			}
+
+			if (b == btSaveParameters) {
+				JFileChooser chooser = new JFileChooser();
+				if (chooser.showSaveDialog(b) == JFileChooser.APPROVE_OPTION) {
+					try {
+						getFilterParameters().save(chooser.getSelectedFile());
+					} catch (IOException e1) {
+						Algorithm.err(e1);
+					}
 				}
 				return;
 			}
@@ -913,11 +1416,7 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 				slDistThreshold.setMinorTickSpacing(slMinTick);
 			}
 			if (hasCurrentSequence() && cbAuto.isSelected()) {
-				try {
-					doFilter(getCurrentSequencePainter());
-				} catch (SignatureException e1) {
-					Algorithm.err(e1);
-				}
+				doFilterInBackground(getCurrentSequencePainter());
 			}
 		}
 	}
@@ -930,13 +1429,14 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	@Override
 	public ColorPickerThresholdPainter createNewPainter() {
 		ColorPickerThresholdPainter painter = new ColorPickerThresholdPainter();
+		painters.add(painter);
 		Sequence currentSequence = getCurrentSequence();
 		painter.setSequence(currentSequence);
 		m1ColorBox.register(painter);
 		m2PosColorBox.register(painter);
 		m2NegColorBox.register(painter);
 		try {
-			doFilter(painter);
+			doFilterOnDemand(painter);
 		} catch (SignatureException e1) {
 			Algorithm.err(e1);
 		}
@@ -952,180 +1452,687 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	 * @throws SignatureException
 	 *             the signature exception
 	 */
-	private Mask doFilter(ColorPickerThresholdPainter painter) throws SignatureException {
-		Sequence currentSequence = painter.getSequence();
-		IcyBufferedImage currentImage = currentSequence.getFirstImage();
-		Mask m = null;
-		int comp = tabbedPane.getSelectedIndex();
-		try {
-			if (comp == 0) {
-				m = filter1(m1ColorBox, currentImage);
-				m.setLabel(getName() + " " + METHOD_1);
-			} else if (comp == 1) {
-				m = filter2(m2PosColorBox, m2NegColorBox, currentImage);
-				m.setLabel(getName() + " " + METHOD_2);
-			}
-		} catch (MaskException e) {
-			// ignore
+	private BitMask doFilter(ColorPickerThresholdPainter painter) throws SignatureException {
+		scheduler.cancel(painter);
+		FilterParameters parameters = getFilterParameters();
+		TiledMask tiled = painter.getTiledMask();
+		BitMask m;
+		if ((tiled != null) && tiled.isBuiltFor(parameters, painter.getSequence().getFirstImage())) {
+			m = tiled.toBitMask(executor);
+		} else {
+			m = filter(painter, parameters, executor);
 		}
 		painter.setMask(m);
-		currentSequence.painterChanged(null);
+		painter.getSequence().painterChanged(null);
+		updateMaskArea();
 		return m;
 	}
 
 	/**
-	 * Filter1.
+	 * Shows the area of the mask the current threshold keeps, read from the
+	 * histogram of the distance map of the current sequence, so that moving
+	 * the threshold shows it without filtering. Shows nothing if the map
+	 * hasn't been computed, with the SVM method or the RGB lookup table.
+	 */
+	private void updateMaskArea() {
+		String text = " ";
+		if (hasCurrentSequence()) {
+			FilterParameters parameters = getFilterParameters();
+			if (parameters.getMethod() == FilterParameters.KNN) {
+				ColorPickerThresholdPainter painter = getCurrentSequencePainter();
+				DistanceMap map = painter.getComputedDistanceMap(parameters, painter.getSequence().getFirstImage());
+				if (map != null) {
+					text = String.format("%.1f %%", 100.0 * map.getArea(parameters.getThreshold()) / map.getNbPixels());
+				}
+			}
+		}
+		lbArea.setText(text);
+	}
+
+	/**
+	 * Filters for display. Large images get a tiled mask, of which only the
+	 * visible tiles are computed, the other ones get a plain mask right now.
 	 * 
-	 * @param box
-	 *            the box
-	 * @param image
-	 *            the image
-	 * @return the mask
-	 * @throws MaskException
-	 *             the mask exception
+	 * @param painter
+	 *            the painter
 	 * @throws SignatureException
 	 *             the signature exception
 	 */
-	private Mask filter1(ColorBox box, IcyBufferedImage image) throws MaskException, SignatureException {
-		if (box.nbColors == 0) {
-			throw new MaskException("No color selected, filtering aborted");
+	private void doFilterOnDemand(ColorPickerThresholdPainter painter) throws SignatureException {
+		IcyBufferedImage image = painter.getSequence().getFirstImage();
+		if (!TiledMask.isWorthIt(image)) {
+			doFilter(painter);
+			return;
 		}
 
-		// CPUMonitor moni = new CPUMonitor();
-		// moni.start();
+		scheduler.cancel(painter);
+		TiledMask tiled = createTiledMask(painter, getFilterParameters(), image, executor);
+		if (tiled != null) {
+			painter.setTiledMask(tiled);
+		} else {
+			painter.setMask(null);
+		}
+		painter.getSequence().painterChanged(null);
+	}
 
-		// System.out.println("starting filtering");
-		// Raster raster = image.getRaster();
-		Mask m = new Mask(image.getWidth(), image.getHeight(), false);
-		BinaryIcyBufferedImage bin = m.getBinaryData();
+	/**
+	 * Creates a tiled mask, compiling the filter but computing no tile. The
+	 * KNN method reuses the cached lookup table, or the distance maps of the
+	 * tiles kept by the painter.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param parameters
+	 *            the parameters
+	 * @param image
+	 *            the image
+	 * @param executor
+	 *            the executor
+	 * @return the tiled mask, null if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private TiledMask createTiledMask(ColorPickerThresholdPainter painter, FilterParameters parameters, IcyBufferedImage image, BandExecutor executor) throws SignatureException {
+		CompiledFilter filter;
+		try {
+			filter = CompiledFilter.compile(parameters, executor, models, lookupTables);
+		} catch (MaskException e) {
+			return null;
+		}
 
-		ArrayList<double[]> csColors = new ArrayList<double[]>();
-		for (int k = 0; k < box.nbColors; k++) {
-			csColors.add(ColorSpaceTools.getColorComponentsD_0_255(choosenCS, box.colors[k].getRed(), box.colors[k].getGreen(), box.colors[k].getBlue()));
+		TiledDistanceMap levels = null;
+		if ((parameters.getMethod() == FilterParameters.KNN) && !parameters.isLookupTable()) {
+			levels = painter.getTiledDistanceMap(parameters, image);
 		}
 
-		byte[] raw = bin.getRawData();
-		int idx = 0;
-		for (int j = 0; j < image.getHeight(); j++) {
-			for (int i = 0; i < image.getWidth(); i++) {
-				double[] cc = ColorSpaceTools.getColorComponentsD_0_255(image, choosenCS, i, j);
-				boolean keep = false;
-				for (int k = 0; k < box.nbColors; k++) {
-					if (distance.computeDistance(cc, csColors.get(k)) < box.getThreshold()) {
-						keep = true;
-						break;
+		String label = getName() + " " + (parameters.getMethod() == FilterParameters.KNN ? METHOD_1 : METHOD_2);
+		Color c = parameters.getAverageColor();
+		int ir = 255 - c.getRed();
+		int ig = 255 - c.getGreen();
+		int ib = 255 - c.getBlue();
+		return new TiledMask(image, parameters, filter, levels, label, new Color(ir, ig, ib));
+	}
+
+	/**
+	 * Computes tiles in the background, repainting after each one.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param tiled
+	 *            the tiled mask
+	 * @param keys
+	 *            the keys of the tiles, from
+	 *            {@link TiledMask#getMissingTiles(int, Rectangle)}
+	 */
+	private void computeTiles(final ColorPickerThresholdPainter painter, final TiledMask tiled, final List<Long> keys) {
+		scheduler.submit(tiled, painter, new FilterScheduler.Job() {
+			@Override
+			void run() throws SignatureException {
+				BandExecutor currentExecutor = acquireExecutor();
+				if (currentExecutor == null) {
+					tiled.done(keys);
+					return;
+				}
+				BandExecutor cancellable = currentExecutor.cancellable(this);
+				final FilterScheduler.Job job = this;
+				try {
+					for (long key : keys) {
+						tiled.compute(key, cancellable);
+						SwingUtilities.invokeLater(new Runnable() {
+							@Override
+							public void run() {
+								if (!job.isCancelled() && (painter.getTiledMask() == tiled)) {
+									painter.getSequence().painterChanged(null);
+								}
+							}
+						});
 					}
+				} finally {
+					tiled.done(keys);
+					currentExecutor.release();
 				}
-				if (keep) {
-					raw[idx] = BinaryIcyBufferedImage.TRUE;
+			}
+		});
+	}
+
+	/**
+	 * Suggests a threshold in the background, as computing the distance map
+	 * may take a while on a large image. The slider is set on the event
+	 * dispatch thread once the threshold is known.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param parameters
+	 *            the KNN parameters
+	 */
+	private void doSuggestInBackground(final ColorPickerThresholdPainter painter, final FilterParameters parameters) {
+		scheduler.submit(painter.suggestion, painter, new FilterScheduler.Job() {
+			@Override
+			void run() throws SignatureException {
+				BandExecutor currentExecutor = acquireExecutor();
+				if (currentExecutor == null) {
+					return;
+				}
+				final FilterScheduler.Job job = this;
+				try {
+					DistanceMap map = painter.getDistanceMap(parameters, painter.getSequence().getFirstImage(), currentExecutor.cancellable(this));
+					final int threshold = map.suggestThreshold();
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							if (!job.isCancelled()) {
+								slDistThreshold.setValue(Math.max(slDistThreshold.getMinimum(), Math.min(slDistThreshold.getMaximum(), threshold)));
+								updateMaskArea();
+							}
+						}
+					});
+				} finally {
+					currentExecutor.release();
 				}
-				idx++;
 			}
-		}
-		Color c = box.getAverageColor();
-		int ir = 255 - c.getRed();
-		int ig = 255 - c.getGreen();
-		int ib = 255 - c.getBlue();
-		m.setColor(new Color(ir, ig, ib));
-		m.setOpacity(1f);
+		});
+	}
 
-		// moni.stop();
-		// System.out.println("Filtering done (" + getThreshold() + ") : " +
-		// moni.getUserElapsedTimeMilli() + " ms");
-		return m;
+	/**
+	 * Filters in the background, for the Auto mode. The parameters are read
+	 * now, the mask is given to the painter on the event dispatch thread once
+	 * it is computed, unless newer parameters have been submitted meanwhile.
+	 * 
+	 * @param painter
+	 *            the painter
+	 */
+	private void doFilterInBackground(final ColorPickerThresholdPainter painter) {
+		final FilterParameters parameters = getFilterParameters();
+
+		scheduler.submit(painter, new FilterScheduler.Job() {
+			@Override
+			void run() throws SignatureException {
+				BandExecutor currentExecutor = acquireExecutor();
+				if (currentExecutor == null) {
+					return;
+				}
+				try {
+					filterInBackground(painter, parameters, currentExecutor.cancellable(this), this);
+				} finally {
+					currentExecutor.release();
+				}
+			}
+		});
 	}
 
 	/**
-	 * Filter2.
+	 * The work of {@link #doFilterInBackground(ColorPickerThresholdPainter)}.
 	 * 
-	 * @param boxP
-	 *            the box p
-	 * @param boxN
-	 *            the box n
-	 * @param image
-	 *            the image
-	 * @return the mask
-	 * @throws MaskException
-	 *             the mask exception
+	 * @param painter
+	 *            the painter
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor, cancelled with the job
+	 * @param job
+	 *            the job
 	 * @throws SignatureException
 	 *             the signature exception
 	 */
-	private Mask filter2(ColorBox boxP, ColorBox boxN, IcyBufferedImage image) throws MaskException, SignatureException {
-		if (boxP.nbColors == 0) {
-			throw new MaskException("No positive color selected, filtering aborted");
+	private void filterInBackground(final ColorPickerThresholdPainter painter, FilterParameters parameters, BandExecutor executor, final FilterScheduler.Job job) throws SignatureException {
+		IcyBufferedImage image = painter.getSequence().getFirstImage();
+		if (TiledMask.isWorthIt(image)) {
+			final TiledMask tiled = createTiledMask(painter, parameters, image, executor);
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					if (!job.isCancelled()) {
+						if (tiled != null) {
+							painter.setTiledMask(tiled);
+						} else {
+							painter.setMask(null);
+						}
+						painter.getSequence().painterChanged(null);
+					}
+				}
+			});
+			return;
 		}
-		if (boxN.nbColors == 0) {
-			throw new MaskException("No negative color selected, filtering aborted");
+		if (progressive) {
+			preview(painter, parameters, executor, job);
 		}
+		publish(painter, filter(painter, parameters, executor), job);
+	}
 
-		// Raster raster = image.getRaster();
-
-		DefaultVectorSignature[] pos = new DefaultVectorSignature[boxP.nbColors];
-		DefaultVectorSignature[] neg = new DefaultVectorSignature[boxN.nbColors];
+	/**
+	 * Gets the current executor for a background job, which must give it
+	 * back with {@link BandExecutor#release()} once done, so that changing
+	 * the number of threads never stops the threads under a running job.
+	 * 
+	 * @return the executor, null if the interface has been stopped
+	 */
+	private BandExecutor acquireExecutor() {
+		while (true) {
+			BandExecutor current = executor;
+			if (current == null) {
+				return null;
+			}
+			if (current.acquire()) {
+				return current;
+			}
+			// replaced meanwhile, the new one is already published
+		}
+	}
 
-		for (int i = 0; i < boxP.nbColors; i++) {
-			double[] ddd = ColorSpaceTools.getColorComponentsD_0_1(choosenCS, boxP.colors[i].getRed(), boxP.colors[i].getGreen(), boxP.colors[i].getBlue());
-			DenseVectorSignature s = new DenseVectorSignature(ColorSpaceTools.NB_COLOR_CHANNELS);
-			for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
-				s.set(d, ddd[d]);
+	/**
+	 * Shows a mask computed in the background, unless its job has been
+	 * cancelled in the meantime.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param m
+	 *            the mask
+	 * @param job
+	 *            the job
+	 */
+	private void publish(final ColorPickerThresholdPainter painter, final BitMask m, final FilterScheduler.Job job) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (!job.isCancelled()) {
+					painter.setMask(m);
+					painter.getSequence().painterChanged(null);
+					updateMaskArea();
+				}
 			}
-			pos[i] = s;
+		});
+	}
+
+	/**
+	 * Shows coarse masks of a large image, one for each step of
+	 * {@link ProgressivePreview#STEPS}, so that the user sees something
+	 * before the full resolution pass ends. Does nothing when the full
+	 * resolution pass only has to read a cached distance map or lookup
+	 * table.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor, cancelled with the job
+	 * @param job
+	 *            the job
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void preview(ColorPickerThresholdPainter painter, FilterParameters parameters, BandExecutor executor, FilterScheduler.Job job) throws SignatureException {
+		IcyBufferedImage image = painter.getSequence().getFirstImage();
+		ColorPlanes planes = ColorPlanes.of(image);
+		if ((planes == null) || (image.getWidth() * image.getHeight() < ProgressivePreview.MIN_PIXELS)) {
+			return;
 		}
-		for (int i = 0; i < boxN.nbColors; i++) {
-			double[] ddd = ColorSpaceTools.getColorComponentsD_0_1(choosenCS, boxN.colors[i].getRed(), boxN.colors[i].getGreen(), boxN.colors[i].getBlue());
-			DenseVectorSignature s = new DenseVectorSignature(ColorSpaceTools.NB_COLOR_CHANNELS);
-			for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
-				s.set(d, ddd[d]);
+
+		FilterParameters previewParameters = parameters;
+		if (parameters.getMethod() == FilterParameters.KNN) {
+			if (painter.hasDistanceMap(parameters, image) || painter.canUpdateDistanceMap(parameters, image) || (parameters.isLookupTable() && hasLookupTable(parameters))) {
+				return;
 			}
-			neg[i] = s;
+			// the table would be built twice, the samples are few enough to
+			// be compared to the colors directly
+			previewParameters = FilterParameters.knn(parameters.getColorSpace(), parameters.getColors(), parameters.getDistance(), parameters.getThreshold(), false);
 		}
 
-		SVMClassifier svm = new SVMClassifier();
-		svm.createProblem(pos, neg);
+		CompiledFilter filter;
+		try {
+			filter = CompiledFilter.compile(previewParameters, executor, models);
+		} catch (MaskException e) {
+			return;
+		}
 
-		svm.setC(Math.pow(2, slC.getValue()));
-		svm.setGamma(Math.pow(2, slGamma.getValue()));
+		for (int step : ProgressivePreview.STEPS) {
+			ProgressivePreview preview = new ProgressivePreview(planes, step);
+			preview.filter(filter, executor);
 
-		if (rbKernelLin.isSelected()) {
-			svm.setKernel(svm_parameter.LINEAR);
-		} else if (rbKernelTri.isSelected()) {
-			svm.setKernel(svm_parameter.TRIANGULAR);
-		} else if (rbKernelRBF.isSelected()) {
-			svm.setKernel(svm_parameter.RBF);
-		}
+			BitMask m = new BitMask(image.getWidth(), image.getHeight());
+			preview.expand(m, executor);
+			Color c;
+			if (parameters.getMethod() == FilterParameters.KNN) {
+				c = parameters.getAverageColor();
+				m.setLabel(getName() + " " + METHOD_1);
+			} else {
+				c = preview.getAverageColor();
+				m.setLabel(getName() + " " + METHOD_2);
+			}
+			int ir = 255 - c.getRed();
+			int ig = 255 - c.getGreen();
+			int ib = 255 - c.getBlue();
+			m.setColor(new Color(ir, ig, ib));
 
-		svm.learnModel();
+			publish(painter, m, job);
+		}
+	}
 
-		Mask m = new Mask(image.getWidth(), image.getHeight(), false);
-		BinaryIcyBufferedImage bin = m.getBinaryData();
-		SegmentableIcyBufferedImage simg = new SegmentableIcyBufferedImage(image);
+	/**
+	 * Filters all the images of a sequence in the background, with the
+	 * current parameters, and shows the masks as a new sequence.
+	 * 
+	 * @param sequence
+	 *            the sequence
+	 */
+	private void doFilterSequence(final Sequence sequence) {
+		final FilterParameters parameters = getFilterParameters();
+		final BandExecutor currentExecutor = acquireExecutor();
+		if (currentExecutor == null) {
+			return;
+		}
 
-		ColorPixel col = new ColorPixel(false);
-		col.setColorSpace(choosenCS);
+		btSequence.setEnabled(false);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					CompiledFilter filter = CompiledFilter.compile(parameters, currentExecutor, models, lookupTables);
+					Sequence masks = new SequenceBatch(filter, currentExecutor).run(sequence);
+					Icy.addSequence(masks);
+				} catch (MaskException e) {
+					Algorithm.err(e);
+				} catch (SignatureException e) {
+					Algorithm.err(e);
+				} catch (RuntimeException e) {
+					Algorithm.err(e);
+				} finally {
+					currentExecutor.release();
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							btSequence.setEnabled(hasCurrentSequence());
+						}
+					});
+				}
+			}
+		}, "ColorPickerThreshold-sequence");
+		t.start();
+	}
 
-		byte[] raw = bin.getRawData();
-		int idx = 0;
-		for (int y = 0; y < image.getHeight(); y++) {
-			for (int x = 0; x < image.getWidth(); x++) {
-				IcyPixel pix = new IcyPixel(x, y);
-				DefaultVectorSignature vs = (DefaultVectorSignature) col.extractLocalSignature(simg, pix);
-				if (svm.predict(vs) > 0) {
-					raw[idx] = BinaryIcyBufferedImage.TRUE;
+	/**
+	 * Samples the colors of an area of an image.
+	 * 
+	 * @param sampler
+	 *            the sampler
+	 * @param image
+	 *            the image
+	 * @param area
+	 *            the area, clipped to the image
+	 * @param roi
+	 *            the ROI the pixels must be in, may be null
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void harvest(ColorSampler sampler, IcyBufferedImage image, Rectangle area, ROI2D roi) throws SignatureException {
+		Rectangle r = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		ColorPlanes planes = ColorPlanes.of(image);
+		for (int y = r.y; y < r.y + r.height; y++) {
+			for (int x = r.x; x < r.x + r.width; x++) {
+				if ((roi == null) || roi.contains(x, y)) {
+					if (planes != null) {
+						sampler.add(planes.rgb(y * image.getWidth() + x));
+					} else {
+						int[] c = ColorSpaceTools.getColorComponentsI_0_255(image, ColorSpaceTools.RGB, x, y);
+						sampler.add(RGBLookupTable.pack(c[0], c[1], c[2]));
+					}
 				}
-				idx++;
 			}
 		}
+	}
+
+	/**
+	 * Registers the statistics in the platform MBean server.
+	 */
+	private void registerStatistics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(FilterStatistics.OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new StandardMBean(statistics, FilterStatisticsMBean.class), name);
+		} catch (JMException e) {
+			Algorithm.err(e);
+		}
+	}
 
-		Color c = m.getAverageColor(image);
+	/**
+	 * Unregisters the statistics from the platform MBean server.
+	 */
+	private void unregisterStatistics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(FilterStatistics.OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			Algorithm.err(e);
+		}
+	}
+
+	/**
+	 * Gets the filter parameters from the interface. Must be called on the
+	 * event dispatch thread.
+	 * 
+	 * @return the filter parameters
+	 */
+	private FilterParameters getFilterParameters() {
+		if (tabbedPane.getSelectedIndex() == FilterParameters.SVM) {
+			int kernel = svm_parameter.TRIANGULAR;
+			if (rbKernelLin.isSelected()) {
+				kernel = svm_parameter.LINEAR;
+			} else if (rbKernelTri.isSelected()) {
+				kernel = svm_parameter.TRIANGULAR;
+			} else if (rbKernelRBF.isSelected()) {
+				kernel = svm_parameter.RBF;
+			}
+			return FilterParameters.svm(choosenCS, m2PosColorBox.getPackedColors(), m2NegColorBox.getPackedColors(), kernel, Math.pow(2, slC.getValue()), Math.pow(2, slGamma.getValue()), cbUniqueColors.isSelected(), cbDecisionGrid.isSelected());
+		}
+		return FilterParameters.knn(choosenCS, m1ColorBox.getPackedColors(), distance, m1ColorBox.getThreshold(), cbLookupTable.isSelected());
+	}
+
+	/**
+	 * Filters the image of a painter. Doesn't touch the interface, so it may
+	 * be called from any thread.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor
+	 * @return the mask, null if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private BitMask filter(ColorPickerThresholdPainter painter, FilterParameters parameters, BandExecutor executor) throws SignatureException {
+		IcyBufferedImage currentImage = painter.getSequence().getFirstImage();
+		FilterStatistics.Run run = statistics.start(parameters);
+		BandExecutor measured = executor.measured(run);
+		BitMask m = new BitMask(currentImage.getWidth(), currentImage.getHeight());
+		Color c;
+		try {
+			if (parameters.getMethod() == FilterParameters.KNN) {
+				filter1(parameters, painter, currentImage, m, measured);
+				m.setLabel(getName() + " " + METHOD_1);
+				c = parameters.getAverageColor();
+			} else {
+				filter2(parameters, painter, currentImage, m, measured, run);
+				m.setLabel(getName() + " " + METHOD_2);
+				c = m.getAverageColor(currentImage);
+			}
+		} catch (MaskException e) {
+			return null;
+		}
 		int ir = 255 - c.getRed();
 		int ig = 255 - c.getGreen();
 		int ib = 255 - c.getBlue();
 		m.setColor(new Color(ir, ig, ib));
-		m.setOpacity(1f);
 
+		record(run, (long) m.getWidth() * m.getHeight(), m.count());
 		return m;
 	}
 
+	/**
+	 * Filters the image of a painter directly into an area ROI, without
+	 * going through a full mask. The exact tiles of the tiled mask of the
+	 * painter are reused when it is built for the parameters. Doesn't touch
+	 * the interface, so it may be called from any thread.
+	 * 
+	 * @param painter
+	 *            the painter
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor
+	 * @return the ROI, null if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private ROI2DArea filterAsROI(ColorPickerThresholdPainter painter, FilterParameters parameters, BandExecutor executor) throws SignatureException {
+		IcyBufferedImage currentImage = painter.getSequence().getFirstImage();
+		FilterStatistics.Run run = statistics.start(parameters);
+		BandExecutor measured = executor.measured(run);
+		RunLengthMask runs = new RunLengthMask(currentImage.getWidth(), currentImage.getHeight());
+		TiledMask tiled = painter.getTiledMask();
+		try {
+			if ((tiled != null) && tiled.isBuiltFor(parameters, currentImage)) {
+				tiled.write(runs, measured);
+			} else if (parameters.getMethod() == FilterParameters.KNN) {
+				filter1(parameters, painter, currentImage, runs, measured);
+			} else {
+				filter2(parameters, painter, currentImage, runs, measured, run);
+			}
+		} catch (MaskException e) {
+			return null;
+		}
+
+		record(run, (long) runs.getWidth() * runs.getHeight(), runs.count());
+		return runs.toROI2DArea();
+	}
+
+	/**
+	 * Ends a run, adds it to the statistics and shows it.
+	 * 
+	 * @param run
+	 *            the run
+	 * @param pixels
+	 *            the number of filtered pixels
+	 * @param kept
+	 *            the number of kept pixels
+	 */
+	private void record(FilterStatistics.Run run, long pixels, long kept) {
+		run.end(pixels, kept);
+		statistics.record(run);
+		final String last = run.toString();
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				lbStats.setText(last);
+			}
+		});
+	}
+
+	/**
+	 * Filter1.
+	 * 
+	 * @param parameters
+	 *            the parameters
+	 * @param painter
+	 *            the painter, which caches the distance map of its sequence
+	 * @param image
+	 *            the image
+	 * @param mask
+	 *            the mask to fill
+	 * @param executor
+	 *            the executor
+	 * @throws MaskException
+	 *             the mask exception
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void filter1(FilterParameters parameters, ColorPickerThresholdPainter painter, IcyBufferedImage image, MaskWriter mask, BandExecutor executor) throws MaskException, SignatureException {
+		if (parameters.getColors().length == 0) {
+			throw new MaskException("No color selected, filtering aborted");
+		}
+
+		ColorPlanes planes = ColorPlanes.of(image);
+		if ((planes != null) && parameters.isLookupTable()) {
+			getLookupTable(parameters, executor).filter(planes, mask, executor);
+		} else {
+			painter.getDistanceMap(parameters, image, executor).threshold(parameters.getThreshold(), mask, executor);
+		}
+	}
+
+	/**
+	 * Gets the lookup table for the KNN parameters, building it only if one
+	 * of them has changed since the last call.
+	 * 
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor
+	 * @return the lookup table
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private synchronized RGBLookupTable getLookupTable(FilterParameters parameters, BandExecutor executor) throws SignatureException {
+		RGBLookupTable table = lookupTable;
+		if ((table == null) || !table.isBuiltFor(parameters.getColors(), parameters.getColorSpace(), parameters.getDistance(), parameters.getThreshold())) {
+			lookupTable = null;
+			table = RGBLookupTable.build(parameters.getColors(), parameters.getColorSpace(), parameters.getDistance(), parameters.getThreshold(), executor);
+			lookupTable = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Checks if the lookup table for the KNN parameters is already built.
+	 * 
+	 * @param parameters
+	 *            the parameters
+	 * @return true, if {@link #getLookupTable} won't build anything
+	 */
+	private boolean hasLookupTable(FilterParameters parameters) {
+		RGBLookupTable table = lookupTable;
+		return (table != null) && table.isBuiltFor(parameters.getColors(), parameters.getColorSpace(), parameters.getDistance(), parameters.getThreshold());
+	}
+
+	/**
+	 * Filter2.
+	 * 
+	 * @param parameters
+	 *            the parameters
+	 * @param painter
+	 *            the painter, which caches the converted image of its
+	 *            sequence
+	 * @param image
+	 *            the image
+	 * @param mask
+	 *            the mask to fill
+	 * @param executor
+	 *            the executor
+	 * @param run
+	 *            the run, to which the training time is added
+	 * @throws MaskException
+	 *             the mask exception
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private void filter2(FilterParameters parameters, ColorPickerThresholdPainter painter, IcyBufferedImage image, MaskWriter mask, BandExecutor executor, FilterStatistics.Run run) throws MaskException, SignatureException {
+		long start = System.nanoTime();
+		CompiledFilter filter = CompiledFilter.compile(parameters, executor, models);
+		run.addTraining(System.nanoTime() - start);
+
+		ConvertedPlanes converted = null;
+		if (!parameters.isUniqueColors()) {
+			converted = painter.getConvertedPlanes(image, parameters.getColorSpace(), true, executor);
+		}
+		filter.filter(image, converted, mask, executor);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1170,6 +2177,21 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 					bx.fireFilterParametersChangeEvent();
 				}
 			}
+
+			if (c == cbProgressive) {
+				progressive = cbProgressive.isSelected();
+			}
+
+			if ((c == cbUniqueColors) || (c == cbDecisionGrid)) {
+				m2PosColorBox.fireFilterParametersChangeEvent();
+			}
+
+			if (c == cbLookupTable) {
+				if (!cbLookupTable.isSelected()) {
+					lookupTable = null;
+				}
+				m1ColorBox.fireFilterParametersChangeEvent();
+			}
 		}
 	}
 
@@ -1182,17 +2204,21 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	@Override
 	public void sequenceHasChangedAfterSettingPainter() {
 		if (hasCurrentSequence()) {
+			scheduler.setPreferred(getCurrentSequencePainter());
 			Sequence currentSequence = getCurrentSequence();
 			setTitle(getName() + " - " + currentSequence.getName());
 			btFilter.setEnabled(true);
 			btKeepMask.setEnabled(true);
 			btAsROI.setEnabled(true);
+			btSequence.setEnabled(true);
 			btCancelFilter.setEnabled(true);
 		} else {
+			scheduler.setPreferred(null);
 			setTitle(getName());
 			btFilter.setEnabled(false);
 			btKeepMask.setEnabled(false);
 			btAsROI.setEnabled(false);
+			btSequence.setEnabled(false);
 			btCancelFilter.setEnabled(false);
 		}
 	}
@@ -1264,18 +2290,29 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		btMinus = new JButton(NherveToolbox.minusIcon);
 		btMinus.addActionListener(this);
 		JPanel pmbt = GuiUtil.createPageBoxPanel(btPlus, btMinus);
+		btSuggest = new JButton("Suggest");
+		btSuggest.setToolTipText("Set the threshold that best separates the pixels close to the choosen colors from the other ones (Otsu)");
+		btSuggest.addActionListener(this);
 
 		lbCurrent = new JLabel(Integer.toString(slDistThreshold.getValue()));
+		lbArea = new JLabel(" ");
+		lbArea.setToolTipText("Part of the image kept by the threshold");
+		JPanel current = GuiUtil.createPageBoxPanel(lbCurrent, lbArea);
 
 		JPanel boxDist = GuiUtil.createPageBoxPanel(GuiUtil.createLineBoxPanel(Box.createHorizontalGlue(), new JLabel("Distance"), Box.createHorizontalGlue()), GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), rbL1, Box.createHorizontalGlue(), rbL2, Box.createHorizontalGlue() }));
 
-		JPanel thresh = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), boxDist, Box.createHorizontalGlue(), slDistThreshold, Box.createHorizontalGlue(), pmbt, Box.createHorizontalGlue(), lbCurrent, Box.createHorizontalGlue() });
+		JPanel thresh = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), boxDist, Box.createHorizontalGlue(), slDistThreshold, Box.createHorizontalGlue(), pmbt, Box.createHorizontalGlue(), btSuggest, Box.createHorizontalGlue(), current, Box.createHorizontalGlue() });
 		thresh.setBorder(new TitledBorder("Threshold"));
 
 		m1ColorBox = new ColorBox("Choosen colors");
 		m1ColorBox.setThreshold(colDefaultDist);
 		JPanel box1 = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), m1ColorBox, Box.createHorizontalGlue() });
 
+		cbLookupTable = new JCheckBox("RGB lookup table");
+		cbLookupTable.setToolTipText("Decide once for every 24 bits color, then filter with one lookup per pixel");
+		cbLookupTable.addItemListener(this);
+		JPanel box7 = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), cbLookupTable, Box.createHorizontalGlue() });
+
 		// SVM
 
 		m2PosColorBox = new ColorBox("Positive");
@@ -1314,13 +2351,21 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		valGamma = new JLabel("gamma = " + Math.pow(2, slGamma.getValue()));
 		JPanel box5 = GuiUtil.createLineBoxPanel(new Component[] { valGamma, Box.createHorizontalGlue(), slGamma });
 
+		cbUniqueColors = new JCheckBox("Predict unique colors only");
+		cbUniqueColors.setToolTipText("Predict each distinct color of the image once, then copy the result to its pixels");
+		cbUniqueColors.addItemListener(this);
+		cbDecisionGrid = new JCheckBox("Decision grid");
+		cbDecisionGrid.setToolTipText("Predict exactly only the colors near the decision boundary, same result");
+		cbDecisionGrid.addItemListener(this);
+		JPanel box8 = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), cbUniqueColors, cbDecisionGrid, Box.createHorizontalGlue() });
+
 		JPanel box6 = GuiUtil.createPageBoxPanel(new Component[] { box3, box4, box5 });
 		box6.setBorder(new TitledBorder("Kernel"));
 
 		// TABBED
 
-		JPanel tabbed1 = GuiUtil.createPageBoxPanel(new Component[] { Box.createVerticalGlue(), box1, Box.createVerticalGlue(), thresh, Box.createVerticalGlue() });
-		JPanel tabbed2 = GuiUtil.createPageBoxPanel(box2, box6);
+		JPanel tabbed1 = GuiUtil.createPageBoxPanel(new Component[] { Box.createVerticalGlue(), box1, Box.createVerticalGlue(), thresh, box7, Box.createVerticalGlue() });
+		JPanel tabbed2 = GuiUtil.createPageBoxPanel(box2, box6, box8);
 
 		tabbedPane = new JTabbedPane();
 		tabbedPane.addTab(METHOD_1, tabbed1);
@@ -1348,6 +2393,22 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 
 		cbAuto = new JCheckBox("Auto");
 		cbAuto.addItemListener(this);
+		cbProgressive = new JCheckBox("Progressive");
+		cbProgressive.setToolTipText("In Auto mode, show coarse masks of large images before the full resolution one");
+		cbProgressive.setSelected(true);
+		progressive = true;
+		cbProgressive.addItemListener(this);
+
+		executor = new BandExecutor(BandExecutor.getDefaultParallelism());
+		scheduler = new FilterScheduler();
+		painters = new ArrayList<ColorPickerThresholdPainter>();
+		models = new ModelCache();
+		statistics = new FilterStatistics();
+		registerStatistics();
+		spThreads = new JSpinner(new SpinnerNumberModel(executor.getParallelism(), 1, Math.max(MAX_THREADS, executor.getParallelism()), 1));
+		spThreads.setToolTipText("Number of threads used for filtering");
+		spThreads.addChangeListener(this);
+		ComponentUtil.setFixedSize(spThreads, new Dimension(50, 22));
 
 		btFilter = new JButton("Launch filtering");
 		btFilter.addActionListener(this);
@@ -1361,11 +2422,25 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		btAsROI = new JButton("As ROI");
 		btAsROI.setEnabled(false);
 		btAsROI.addActionListener(this);
-
-		JPanel buttons1 = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), btFilter, btCancelFilter, btKeepMask, btAsROI, Box.createHorizontalGlue() });
-		JPanel csp = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), rbRGB, rbHSV, rbH1H2H3, cbShow, cbAuto, Box.createHorizontalGlue() });
-
-		JPanel notTabbed = GuiUtil.createPageBoxPanel(csp, buttons1);
+		btSequence = new JButton("Whole sequence");
+		btSequence.setToolTipText("Filter every T and Z of the sequence into a new mask sequence");
+		btSequence.setEnabled(false);
+		btSequence.addActionListener(this);
+		btHarvest = new JButton("From ROIs");
+		btHarvest.setToolTipText("Add the representative colors of the ROIs of the sequence, Shift + drag to use a brush");
+		btHarvest.addActionListener(this);
+		btSaveParameters = new JButton("Save parameters");
+		btSaveParameters.setToolTipText("Save the current parameters for the headless batch runner");
+		btSaveParameters.addActionListener(this);
+
+		JPanel buttons1 = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), btFilter, btCancelFilter, btKeepMask, btAsROI, btSequence, btHarvest, btSaveParameters, Box.createHorizontalGlue() });
+		JPanel csp = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), rbRGB, rbHSV, rbH1H2H3, cbShow, cbAuto, cbProgressive, Box.createHorizontalStrut(5), new JLabel("Threads "), spThreads, Box.createHorizontalGlue() });
+
+		lbStats = new JLabel(" ");
+		lbStats.setToolTipText("Last filter run, the totals are available through JMX");
+		JPanel stats = GuiUtil.createLineBoxPanel(new Component[] { Box.createHorizontalGlue(), lbStats, Box.createHorizontalGlue() });
+
+		JPanel notTabbed = GuiUtil.createPageBoxPanel(csp, buttons1, stats);
 
 		mainPanel.add(tabbedPane);
 		mainPanel.add(notTabbed);
@@ -1380,6 +2455,16 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	 */
 	@Override
 	public void stateChanged(ChangeEvent e) {
+		if (e.getSource() == spThreads) {
+			int parallelism = ((Number) spThreads.getValue()).intValue();
+			if (parallelism != executor.getParallelism()) {
+				BandExecutor previous = executor;
+				executor = new BandExecutor(parallelism);
+				previous.retire();
+			}
+			return;
+		}
+
 		JSlider s = (JSlider) e.getSource();
 		if (s == null) {
 			return;
@@ -1388,6 +2473,7 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 		if (s == slDistThreshold) {
 			lbCurrent.setText(Integer.toString(slDistThreshold.getValue()));
 			m1ColorBox.setThreshold(slDistThreshold.getValue());
+			updateMaskArea();
 		}
 		
 		if (s == slC) {
@@ -1408,6 +2494,19 @@ public class ColorPickerThreshold extends PainterManagerSingletonPlugin<ColorPic
 	 */
 	@Override
 	public void stopInterface() {
+		unregisterStatistics();
+		for (ColorPickerThresholdPainter painter : painters) {
+			painter.dispose();
+		}
+		painters.clear();
+		if (scheduler != null) {
+			// kept stopped, the late events of the painters are ignored
+			scheduler.shutdown();
+		}
+		if (executor != null) {
+			executor.retire();
+			executor = null;
+		}
 	}
 
 }
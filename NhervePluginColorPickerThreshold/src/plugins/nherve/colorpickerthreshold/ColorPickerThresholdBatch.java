@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.mask.MaskException;
+
+/**
+ * Headless runner : thresholds all the images of a directory with parameters
+ * saved from the plugin, and writes the masks as PNG files. The files are
+ * processed in parallel, one file per thread.
+ *
+ * <pre>
+ * java plugins.nherve.colorpickerthreshold.ColorPickerThresholdBatch parameters input output [threads]
+ * </pre>
+ *
+ * The files that fail are listed at the end of the report, and the exit
+ * status is then 2 (1 for a usage or parameters error).
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ColorPickerThresholdBatch {
+
+	/**
+	 * The result of a file, processed or failed.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class FileResult {
+
+		/** The file. */
+		private final File file;
+
+		/** The number of pixels. */
+		private final long pixels;
+
+		/** The elapsed time, in milliseconds. */
+		private final long elapsed;
+
+		/** The reason of the failure, null if the file has been processed. */
+		private final String error;
+
+		/**
+		 * Instantiates a new file result.
+		 */
+		FileResult(File file, long pixels, long elapsed) {
+			super();
+
+			this.file = file;
+			this.pixels = pixels;
+			this.elapsed = elapsed;
+			this.error = null;
+		}
+
+		/**
+		 * Instantiates the result of a failed file.
+		 */
+		FileResult(File file, String error) {
+			super();
+
+			this.file = file;
+			this.pixels = 0;
+			this.elapsed = 0;
+			this.error = error;
+		}
+
+		/**
+		 * Checks if the file failed.
+		 */
+		boolean isFailed() {
+			return error != null;
+		}
+	}
+
+	/** The exit status when some files failed. */
+	private final static int FAILED_FILES_STATUS = 2;
+
+	/** The suffix of the mask files. */
+	private final static String MASK_SUFFIX = "_mask.png";
+
+	/** The value of the kept pixels in the mask files. */
+	private final static byte KEPT = (byte) 255;
+
+	/** The filter. */
+	private final CompiledFilter filter;
+
+	/** The number of threads. */
+	private final int nbThreads;
+
+	/**
+	 * Instantiates a new batch runner.
+	 *
+	 * @param parameters
+	 *            the parameters
+	 * @param nbThreads
+	 *            the number of threads
+	 * @throws MaskException
+	 *             if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	ColorPickerThresholdBatch(FilterParameters parameters, int nbThreads) throws MaskException, SignatureException {
+		super();
+
+		this.nbThreads = Math.max(1, nbThreads);
+
+		BandExecutor executor = new BandExecutor(this.nbThreads);
+		try {
+			filter = CompiledFilter.compile(parameters, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Processes all the images of a directory.
+	 *
+	 * @param input
+	 *            the input directory
+	 * @param output
+	 *            the output directory
+	 * @return the results of the files, failed ones included, in the order of
+	 *         their names
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private List<FileResult> process(File input, final File output) throws IOException {
+		File[] files = input.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list " + input);
+		}
+		Arrays.sort(files);
+
+		if (!output.isDirectory() && !output.mkdirs()) {
+			throw new IOException("Unable to create " + output);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+		try {
+			List<File> submitted = new ArrayList<File>();
+			List<Future<FileResult>> futures = new ArrayList<Future<FileResult>>();
+			for (final File f : files) {
+				if (f.isFile()) {
+					submitted.add(f);
+					futures.add(pool.submit(new Callable<FileResult>() {
+						@Override
+						public FileResult call() throws Exception {
+							return processFile(f, output);
+						}
+					}));
+				}
+			}
+
+			List<FileResult> results = new ArrayList<FileResult>();
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					FileResult r = futures.get(i).get();
+					if (r != null) {
+						results.add(r);
+					}
+				} catch (ExecutionException e) {
+					File f = submitted.get(i);
+					System.err.println(f.getName() + " : " + e.getCause().getMessage());
+					results.add(new FileResult(f, String.valueOf(e.getCause().getMessage())));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Processes one image file, on the calling thread.
+	 *
+	 * @param f
+	 *            the file
+	 * @param output
+	 *            the output directory
+	 * @return the result, null if the file is not an image
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private FileResult processFile(File f, File output) throws IOException, SignatureException {
+		long start = System.currentTimeMillis();
+
+		BufferedImage bi = ImageIO.read(f);
+		if (bi == null) {
+			return null;
+		}
+		IcyBufferedImage image = IcyBufferedImage.createFrom(bi);
+		int w = image.getWidth();
+		int h = image.getHeight();
+
+		BitMask bits = new BitMask(w, h);
+		filter.filter(image, bits, new BandExecutor(1));
+
+		BufferedImage mask = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] data = new byte[w * h];
+		bits.fill(data, KEPT);
+		mask.getRaster().setDataElements(0, 0, w, h, data);
+
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		ImageIO.write(mask, "png", new File(output, name + MASK_SUFFIX));
+
+		return new FileResult(f, (long) w * h, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Prints the per file timings, the throughput and the failed files.
+	 *
+	 * @return the number of failed files
+	 */
+	private static int report(List<FileResult> results, long elapsed) {
+		long pixels = 0;
+		List<FileResult> failed = new ArrayList<FileResult>();
+		for (FileResult r : results) {
+			if (r.isFailed()) {
+				failed.add(r);
+			} else {
+				System.out.println(r.file.getName() + " : " + r.elapsed + " ms");
+				pixels += r.pixels;
+			}
+		}
+		int processed = results.size() - failed.size();
+		double seconds = Math.max(1, elapsed) / 1000d;
+		System.out.println(processed + " files in " + elapsed + " ms");
+		System.out.println(String.format("%.2f files/s, %.2f Mpixels/s", processed / seconds, pixels / seconds / 1e6));
+		if (!failed.isEmpty()) {
+			System.out.println(failed.size() + " files failed :");
+			for (FileResult r : failed) {
+				System.out.println(r.file.getName() + " : " + r.error);
+			}
+		}
+		return failed.size();
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the parameter file, the input directory, the output directory
+	 *            and optionally the number of threads
+	 */
+	public static void main(String[] args) {
+		if ((args.length < 3) || (args.length > 4)) {
+			System.err.println("Usage : ColorPickerThresholdBatch parameters input output [threads]");
+			System.exit(1);
+		}
+
+		System.setProperty("java.awt.headless", "true");
+
+		try {
+			int nbThreads = args.length > 3 ? Integer.parseInt(args[3]) : BandExecutor.getDefaultParallelism();
+			ColorPickerThresholdBatch batch = new ColorPickerThresholdBatch(FilterParameters.load(new File(args[0])), nbThreads);
+
+			long start = System.currentTimeMillis();
+			List<FileResult> results = batch.process(new File(args[1]), new File(args[2]));
+			if (report(results, System.currentTimeMillis() - start) > 0) {
+				System.exit(FAILED_FILES_STATUS);
+			}
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
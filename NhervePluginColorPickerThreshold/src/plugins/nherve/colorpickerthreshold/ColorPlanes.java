@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+import icy.type.TypeUtil;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * Direct access to the red, green and blue planes of an 8 bits image.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ColorPlanes {
+
+	/** The width. */
+	private final int width;
+
+	/** The height. */
+	private final int height;
+
+	/** The red plane. */
+	private final byte[] red;
+
+	/** The green plane. */
+	private final byte[] green;
+
+	/** The blue plane. */
+	private final byte[] blue;
+
+	/**
+	 * Instantiates new color planes.
+	 */
+	private ColorPlanes(int width, int height, byte[] red, byte[] green, byte[] blue) {
+		super();
+
+		this.width = width;
+		this.height = height;
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+	}
+
+	/**
+	 * Gets the planes of an image.
+	 *
+	 * @param image
+	 *            the image
+	 * @return the planes, or null if the image is not an 8 bits RGB image
+	 */
+	static ColorPlanes of(IcyBufferedImage image) {
+		if ((image.getSizeC() < ColorSpaceTools.NB_COLOR_CHANNELS) || !(image.getDataXY(0) instanceof byte[])) {
+			return null;
+		}
+
+		return new ColorPlanes(image.getWidth(), image.getHeight(), image.getDataXYAsByte(0), image.getDataXYAsByte(1), image.getDataXYAsByte(2));
+	}
+
+	/**
+	 * Gets the packed RGB color of a pixel.
+	 *
+	 * @param idx
+	 *            the pixel index, y * width + x
+	 * @return the packed RGB color
+	 */
+	int rgb(int idx) {
+		return ((red[idx] & 0xFF) << 16) | ((green[idx] & 0xFF) << 8) | (blue[idx] & 0xFF);
+	}
+
+	/**
+	 * Copies one pixel every step pixels of an area, in both directions, to
+	 * a new 8 bits RGB image.
+	 *
+	 * @param x
+	 *            the left of the area
+	 * @param y
+	 *            the top of the area
+	 * @param w
+	 *            the width of the area
+	 * @param h
+	 *            the height of the area
+	 * @param step
+	 *            the step, 1 for a plain crop
+	 * @return the image, of ceil(w / step) x ceil(h / step) pixels
+	 */
+	IcyBufferedImage extract(int x, int y, int w, int h, int step) {
+		int sw = (w + step - 1) / step;
+		int sh = (h + step - 1) / step;
+		IcyBufferedImage extracted = new IcyBufferedImage(sw, sh, ColorSpaceTools.NB_COLOR_CHANNELS, TypeUtil.TYPE_BYTE);
+		byte[] r = extracted.getDataXYAsByte(0);
+		byte[] g = extracted.getDataXYAsByte(1);
+		byte[] b = extracted.getDataXYAsByte(2);
+		int idx = 0;
+		for (int j = y; j < y + h; j += step) {
+			int offset = j * width;
+			if (step == 1) {
+				System.arraycopy(red, offset + x, r, idx, w);
+				System.arraycopy(green, offset + x, g, idx, w);
+				System.arraycopy(blue, offset + x, b, idx, w);
+				idx += w;
+			} else {
+				for (int i = x; i < x + w; i += step) {
+					r[idx] = red[offset + i];
+					g[idx] = green[offset + i];
+					b[idx] = blue[offset + i];
+					idx++;
+				}
+			}
+		}
+		extracted.dataChanged();
+		return extracted;
+	}
+
+	/**
+	 * Gets the width.
+	 *
+	 * @return the width
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height.
+	 *
+	 * @return the height
+	 */
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the red plane.
+	 *
+	 * @return the red plane
+	 */
+	byte[] getRed() {
+		return red;
+	}
+
+	/**
+	 * Gets the green plane.
+	 *
+	 * @return the green plane
+	 */
+	byte[] getGreen() {
+		return green;
+	}
+
+	/**
+	 * Gets the blue plane.
+	 *
+	 * @return the blue plane
+	 */
+	byte[] getBlue() {
+		return blue;
+	}
+}
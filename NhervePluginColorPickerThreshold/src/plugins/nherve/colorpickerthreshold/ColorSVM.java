@@ -0,0 +1,513 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.libsvm.svm;
+import plugins.nherve.toolbox.libsvm.svm_model;
+import plugins.nherve.toolbox.libsvm.svm_node;
+import plugins.nherve.toolbox.libsvm.svm_parameter;
+import plugins.nherve.toolbox.libsvm.svm_problem;
+
+/**
+ * A two classes C-SVM on colors. The model is learnt with libsvm, then the
+ * support vectors are copied in primitive arrays so that the decision
+ * function can be evaluated for each pixel without allocating anything. The
+ * decision is the one of <code>svm.svm_predict</code> : same sum, in the same
+ * order, compared to zero.
+ *
+ * The standard libsvm kernels and the triangular kernel of the toolbox,
+ * K(x, y) = -||x - y||, are evaluated directly. As the triangular kernel is
+ * not the one of the standard libsvm, each model first checks that its
+ * direct decision values are those of <code>svm.svm_predict_values</code>,
+ * up to the rounding, on its support vectors and on a grid of colors. The
+ * colors whose decision value is within that rounding of zero are then
+ * predicted by libsvm, so that the sign is always the one of libsvm. If the
+ * check fails, and for the other kernels, the prediction goes through
+ * <code>svm.svm_predict</code> with reused nodes.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ColorSVM {
+
+	/**
+	 * Evaluates the decision function for one thread.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	class Predictor {
+
+		/** The nodes, only used by the kernels evaluated by libsvm. */
+		private final svm_node[] nodes;
+
+		/** The decision grid, may be null. */
+		private final DecisionGrid grid;
+
+		/**
+		 * Instantiates a new predictor.
+		 */
+		private Predictor(boolean useGrid) {
+			super();
+
+			grid = useGrid ? ColorSVM.this.grid : null;
+
+			nodes = new svm_node[ColorSpaceTools.NB_COLOR_CHANNELS];
+			for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+				nodes[d] = new svm_node();
+				nodes[d].index = d + 1;
+			}
+		}
+
+		/**
+		 * Checks if a color is on the positive side.
+		 *
+		 * @param x
+		 *            the color components, in [0, 1]
+		 * @return true, if the color is predicted as positive
+		 */
+		boolean isPositive(double[] x) {
+			if (grid != null) {
+				byte cell = grid.classify(x);
+				if (cell != DecisionGrid.BOUNDARY) {
+					return cell == DecisionGrid.INSIDE;
+				}
+			}
+
+			if (nativeKernel) {
+				double value = decision(x);
+				if ((kernel != svm_parameter.TRIANGULAR) || (Math.abs(value) > tolerance)) {
+					return (value > 0) == firstLabelIsPositive;
+				}
+			}
+
+			for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+				nodes[d].value = x[d];
+			}
+			return svm.svm_predict(model, nodes) > 0;
+		}
+	}
+
+	/** The label of the positive colors. */
+	private final static double POSITIVE = 1;
+
+	/** The label of the negative colors. */
+	private final static double NEGATIVE = -1;
+
+	/** The number of probes per component of the triangular kernel check. */
+	private final static int CHECK_STEPS = 8;
+
+	/**
+	 * The relative margin on the decision bounds and values, for the rounding
+	 * errors.
+	 */
+	private final static double ROUNDING_MARGIN = 1e-9;
+
+	/** The estimated fixed size of a model, in bytes. */
+	private final static long MODEL_OVERHEAD = 1024;
+
+	/**
+	 * The estimated size of a support vector, in bytes : three libsvm nodes
+	 * and their array, plus the copies of the components and coefficient.
+	 */
+	private final static long BYTES_PER_SV = 3 * 24 + 32 + 4 * 8;
+
+	/** The model. */
+	private final svm_model model;
+
+	/** True if the kernel is evaluated here. */
+	private final boolean nativeKernel;
+
+	/** The kernel type. */
+	private final int kernel;
+
+	/** The gamma parameter. */
+	private final double gamma;
+
+	/** The coef0 parameter. */
+	private final double coef0;
+
+	/** The degree parameter. */
+	private final int degree;
+
+	/** The number of support vectors. */
+	private final int nbSV;
+
+	/** The support vectors, NB_COLOR_CHANNELS values each. */
+	private final double[] sv;
+
+	/** The coefficients of the support vectors. */
+	private final double[] coef;
+
+	/** The rho. */
+	private final double rho;
+
+	/**
+	 * The largest difference between the triangular decision values computed
+	 * here and by libsvm, for colors in [0, 1].
+	 */
+	private final double tolerance;
+
+	/** True if a positive decision value means the positive class. */
+	private final boolean firstLabelIsPositive;
+
+	/** The decision grid, null until built. */
+	private volatile DecisionGrid grid;
+
+	/**
+	 * Instantiates a new color svm.
+	 */
+	private ColorSVM(svm_model model) {
+		super();
+
+		this.model = model;
+
+		svm_parameter param = model.param;
+		kernel = param.kernel_type;
+		gamma = param.gamma;
+		coef0 = param.coef0;
+		degree = param.degree;
+
+		nbSV = model.l;
+		sv = new double[nbSV * ColorSpaceTools.NB_COLOR_CHANNELS];
+		coef = new double[nbSV];
+		for (int i = 0; i < nbSV; i++) {
+			for (svm_node n : model.SV[i]) {
+				sv[i * ColorSpaceTools.NB_COLOR_CHANNELS + n.index - 1] = n.value;
+			}
+			coef[i] = model.sv_coef[0][i];
+		}
+		rho = model.rho[0];
+		firstLabelIsPositive = model.label[0] == (int) POSITIVE;
+
+		// |K(x, y)| <= sqrt(3) for the triangular kernel in the unit cube
+		double scale = Math.abs(rho);
+		for (int i = 0; i < nbSV; i++) {
+			scale += Math.abs(coef[i]) * Math.sqrt(ColorSpaceTools.NB_COLOR_CHANNELS);
+		}
+		tolerance = ROUNDING_MARGIN * (scale + 1);
+
+		boolean standard = (kernel == svm_parameter.LINEAR) || (kernel == svm_parameter.POLY) || (kernel == svm_parameter.RBF) || (kernel == svm_parameter.SIGMOID);
+		nativeKernel = standard || ((kernel == svm_parameter.TRIANGULAR) && agreesWithLibsvm());
+	}
+
+	/**
+	 * Checks that the direct decision values are those of libsvm, up to the
+	 * tolerance, on the support vectors and on a grid of colors. A kernel
+	 * differing from -||x - y|| by more than the rounding can't pass it.
+	 */
+	private boolean agreesWithLibsvm() {
+		svm_node[] nodes = toNodes(new double[ColorSpaceTools.NB_COLOR_CHANNELS]);
+		double[] x = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+		for (int i = 0; i < nbSV; i++) {
+			System.arraycopy(sv, i * ColorSpaceTools.NB_COLOR_CHANNELS, x, 0, ColorSpaceTools.NB_COLOR_CHANNELS);
+			if (!agreesWithLibsvm(x, nodes)) {
+				return false;
+			}
+		}
+		for (int i = 0; i <= CHECK_STEPS; i++) {
+			for (int j = 0; j <= CHECK_STEPS; j++) {
+				for (int k = 0; k <= CHECK_STEPS; k++) {
+					x[0] = (double) i / CHECK_STEPS;
+					x[1] = (double) j / CHECK_STEPS;
+					x[2] = (double) k / CHECK_STEPS;
+					if (!agreesWithLibsvm(x, nodes)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean agreesWithLibsvm(double[] x, svm_node[] nodes) {
+		for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+			nodes[d].value = x[d];
+		}
+		double[] values = new double[1];
+		svm.svm_predict_values(model, nodes, values);
+		return Math.abs(decision(x) - values[0]) <= tolerance;
+	}
+
+	/**
+	 * Learns a model. The libsvm parameters are the defaults of the
+	 * SVMClassifier of the toolbox, {@link SVMTrainingCheck} checks that both
+	 * models predict the same.
+	 *
+	 * @param pos
+	 *            the positive colors
+	 * @param neg
+	 *            the negative colors
+	 * @param kernel
+	 *            the kernel type
+	 * @param c
+	 *            the C parameter
+	 * @param gamma
+	 *            the gamma parameter
+	 * @return the trained svm
+	 * @throws SignatureException
+	 *             if libsvm rejects the parameters
+	 */
+	static ColorSVM train(double[][] pos, double[][] neg, int kernel, double c, double gamma) throws SignatureException {
+		svm_problem prob = new svm_problem();
+		prob.l = pos.length + neg.length;
+		prob.y = new double[prob.l];
+		prob.x = new svm_node[prob.l][];
+		for (int i = 0; i < pos.length; i++) {
+			prob.y[i] = POSITIVE;
+			prob.x[i] = toNodes(pos[i]);
+		}
+		for (int i = 0; i < neg.length; i++) {
+			prob.y[pos.length + i] = NEGATIVE;
+			prob.x[pos.length + i] = toNodes(neg[i]);
+		}
+
+		svm_parameter param = new svm_parameter();
+		param.svm_type = svm_parameter.C_SVC;
+		param.kernel_type = kernel;
+		param.degree = 3;
+		param.gamma = gamma;
+		param.coef0 = 0;
+		param.nu = 0.5;
+		param.cache_size = 100;
+		param.C = c;
+		param.eps = 1e-3;
+		param.p = 0.1;
+		param.shrinking = 1;
+		param.probability = 0;
+		param.nr_weight = 0;
+		param.weight_label = new int[0];
+		param.weight = new double[0];
+
+		String error = svm.svm_check_parameter(prob, param);
+		if (error != null) {
+			throw new SignatureException(error);
+		}
+
+		return new ColorSVM(svm.svm_train(prob, param));
+	}
+
+	/**
+	 * Gets an estimation of the memory used by the model, the libsvm nodes of
+	 * the support vectors and their copies for the native decision.
+	 *
+	 * @return the size in bytes
+	 */
+	long getMemorySize() {
+		DecisionGrid g = grid;
+		return MODEL_OVERHEAD + (long) nbSV * BYTES_PER_SV + (g != null ? g.getMemorySize() : 0);
+	}
+
+	/**
+	 * Builds the decision grid of the model, if not already done and if the
+	 * decision function of its kernel can be bounded. The predictors created
+	 * afterwards use it.
+	 *
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	synchronized void buildGrid(BandExecutor executor) throws SignatureException {
+		if ((grid == null) && nativeKernel) {
+			grid = DecisionGrid.build(this, executor);
+		}
+	}
+
+	/**
+	 * Gets the decision grid.
+	 *
+	 * @return the grid, null if not built
+	 */
+	DecisionGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Classifies a box of the color components, using interval bounds of the
+	 * decision function over the box. A margin covers the rounding of the
+	 * exact evaluation.
+	 *
+	 * @param lo
+	 *            the lower corner
+	 * @param hi
+	 *            the upper corner
+	 * @return DecisionGrid.INSIDE or OUTSIDE if the whole box is predicted
+	 *         the same, DecisionGrid.BOUNDARY otherwise
+	 */
+	byte classify(double[] lo, double[] hi) {
+		if (!nativeKernel) {
+			return DecisionGrid.BOUNDARY;
+		}
+
+		double min = -rho;
+		double max = -rho;
+		double scale = Math.abs(rho);
+		for (int i = 0, o = 0; i < nbSV; i++, o += ColorSpaceTools.NB_COLOR_CHANNELS) {
+			double kmin;
+			double kmax;
+			if ((kernel == svm_parameter.RBF) || (kernel == svm_parameter.TRIANGULAR)) {
+				double dmin = 0;
+				double dmax = 0;
+				for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+					double a = lo[d] - sv[o + d];
+					double b = hi[d] - sv[o + d];
+					if ((a > 0) || (b < 0)) {
+						double n = Math.min(Math.abs(a), Math.abs(b));
+						dmin += n * n;
+					}
+					double f = Math.max(Math.abs(a), Math.abs(b));
+					dmax += f * f;
+				}
+				if (kernel == svm_parameter.RBF) {
+					kmin = Math.exp(-gamma * dmax);
+					kmax = Math.exp(-gamma * dmin);
+				} else {
+					kmin = -Math.sqrt(dmax);
+					kmax = -Math.sqrt(dmin);
+				}
+			} else {
+				double umin = 0;
+				double umax = 0;
+				for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+					double a = lo[d] * sv[o + d];
+					double b = hi[d] * sv[o + d];
+					umin += Math.min(a, b);
+					umax += Math.max(a, b);
+				}
+				if (kernel == svm_parameter.LINEAR) {
+					kmin = umin;
+					kmax = umax;
+				} else {
+					double tmin = Math.min(gamma * umin, gamma * umax) + coef0;
+					double tmax = Math.max(gamma * umin, gamma * umax) + coef0;
+					if (kernel == svm_parameter.POLY) {
+						if ((degree % 2 == 1) || (tmin >= 0)) {
+							kmin = powi(tmin, degree);
+							kmax = powi(tmax, degree);
+						} else if (tmax <= 0) {
+							kmin = powi(tmax, degree);
+							kmax = powi(tmin, degree);
+						} else {
+							kmin = 0;
+							kmax = powi(Math.max(-tmin, tmax), degree);
+						}
+					} else {
+						kmin = Math.tanh(tmin);
+						kmax = Math.tanh(tmax);
+					}
+				}
+			}
+
+			if (coef[i] >= 0) {
+				min += coef[i] * kmin;
+				max += coef[i] * kmax;
+			} else {
+				min += coef[i] * kmax;
+				max += coef[i] * kmin;
+			}
+			scale += Math.abs(coef[i]) * Math.max(Math.abs(kmin), Math.abs(kmax));
+		}
+
+		double margin = ROUNDING_MARGIN * (scale + 1);
+		if (min > margin) {
+			return firstLabelIsPositive ? DecisionGrid.INSIDE : DecisionGrid.OUTSIDE;
+		}
+		if (max < -margin) {
+			return firstLabelIsPositive ? DecisionGrid.OUTSIDE : DecisionGrid.INSIDE;
+		}
+		return DecisionGrid.BOUNDARY;
+	}
+
+	/**
+	 * Creates a new predictor, to be used by a single thread.
+	 *
+	 * @param useGrid
+	 *            true to use the decision grid, if built
+	 * @return the predictor
+	 */
+	Predictor newPredictor(boolean useGrid) {
+		return new Predictor(useGrid);
+	}
+
+	/**
+	 * Computes the decision value for the kernels evaluated directly.
+	 */
+	private double decision(double[] x) {
+		double sum = 0;
+		for (int i = 0, o = 0; i < nbSV; i++, o += ColorSpaceTools.NB_COLOR_CHANNELS) {
+			double k;
+			switch (kernel) {
+			case svm_parameter.LINEAR:
+				k = x[0] * sv[o] + x[1] * sv[o + 1] + x[2] * sv[o + 2];
+				break;
+			case svm_parameter.POLY:
+				k = powi(gamma * (x[0] * sv[o] + x[1] * sv[o + 1] + x[2] * sv[o + 2]) + coef0, degree);
+				break;
+			case svm_parameter.RBF:
+				double d0 = x[0] - sv[o];
+				double d1 = x[1] - sv[o + 1];
+				double d2 = x[2] - sv[o + 2];
+				k = Math.exp(-gamma * (d0 * d0 + d1 * d1 + d2 * d2));
+				break;
+			case svm_parameter.TRIANGULAR:
+				double t0 = x[0] - sv[o];
+				double t1 = x[1] - sv[o + 1];
+				double t2 = x[2] - sv[o + 2];
+				k = -Math.sqrt(t0 * t0 + t1 * t1 + t2 * t2);
+				break;
+			default:
+				k = Math.tanh(gamma * (x[0] * sv[o] + x[1] * sv[o + 1] + x[2] * sv[o + 2]) + coef0);
+				break;
+			}
+			sum += coef[i] * k;
+		}
+		return sum - rho;
+	}
+
+	/**
+	 * Same power function as libsvm.
+	 */
+	private static double powi(double base, int times) {
+		double tmp = base;
+		double ret = 1.0;
+
+		for (int t = times; t > 0; t /= 2) {
+			if (t % 2 == 1) {
+				ret *= tmp;
+			}
+			tmp = tmp * tmp;
+		}
+		return ret;
+	}
+
+	/**
+	 * Converts the components of a color to libsvm nodes.
+	 */
+	private static svm_node[] toNodes(double[] x) {
+		svm_node[] nodes = new svm_node[ColorSpaceTools.NB_COLOR_CHANNELS];
+		for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+			nodes[d] = new svm_node();
+			nodes[d].index = d + 1;
+			nodes[d].value = x[d];
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Collects colors from brush strokes or regions of any size. A uniform
+ * sample of bounded size is kept with reservoir sampling, and reduced to a
+ * small representative palette with the median cut algorithm, so that the
+ * cost of the classification doesn't depend on how much has been annotated.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ColorSampler {
+
+	/** The default size of the sample. */
+	private final static int DEFAULT_RESERVOIR_SIZE = 1 << 16;
+
+	/** The sample. */
+	private final int[] reservoir;
+
+	/** The number of colors seen. */
+	private long count;
+
+	/** The random generator. */
+	private final Random random;
+
+	/**
+	 * Instantiates a new color sampler with the default sample size.
+	 */
+	ColorSampler() {
+		this(DEFAULT_RESERVOIR_SIZE);
+	}
+
+	/**
+	 * Instantiates a new color sampler.
+	 *
+	 * @param size
+	 *            the size of the sample
+	 */
+	ColorSampler(int size) {
+		super();
+
+		reservoir = new int[size];
+		count = 0;
+		random = new Random();
+	}
+
+	/**
+	 * Adds a color.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 */
+	void add(int rgb) {
+		if (count < reservoir.length) {
+			reservoir[(int) count] = rgb;
+		} else {
+			long r = (long) (random.nextDouble() * (count + 1));
+			if (r < reservoir.length) {
+				reservoir[(int) r] = rgb;
+			}
+		}
+		count++;
+	}
+
+	/**
+	 * Gets the number of colors seen.
+	 *
+	 * @return the count
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * Reduces the sample to a palette with the median cut algorithm : the box
+	 * of colors with the widest channel range is split at its median along
+	 * that channel, until there are enough boxes. Each box gives its sampled
+	 * color closest to its average, so that the palette only holds colors
+	 * that have been annotated.
+	 *
+	 * @param maxColors
+	 *            the maximum number of colors
+	 * @return the packed RGB colors of the palette
+	 */
+	int[] getPalette(int maxColors) {
+		int n = (int) Math.min(count, reservoir.length);
+		int[] colors = Arrays.copyOf(reservoir, n);
+		if (n == 0) {
+			return colors;
+		}
+
+		int[] from = new int[maxColors];
+		int[] to = new int[maxColors];
+		from[0] = 0;
+		to[0] = n;
+		int nbBoxes = 1;
+
+		while (nbBoxes < maxColors) {
+			int best = -1;
+			int bestChannel = 0;
+			int bestRange = 0;
+			for (int b = 0; b < nbBoxes; b++) {
+				for (int channel = 0; channel < 3; channel++) {
+					int range = range(colors, from[b], to[b], channel);
+					if (range > bestRange) {
+						best = b;
+						bestChannel = channel;
+						bestRange = range;
+					}
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+
+			sort(colors, from[best], to[best], bestChannel);
+			int median = (from[best] + to[best]) >>> 1;
+			from[nbBoxes] = median;
+			to[nbBoxes] = to[best];
+			to[best] = median;
+			nbBoxes++;
+		}
+
+		int[] palette = new int[nbBoxes];
+		for (int b = 0; b < nbBoxes; b++) {
+			long r = 0;
+			long g = 0;
+			long bl = 0;
+			for (int i = from[b]; i < to[b]; i++) {
+				r += RGBLookupTable.red(colors[i]);
+				g += RGBLookupTable.green(colors[i]);
+				bl += RGBLookupTable.blue(colors[i]);
+			}
+			int size = to[b] - from[b];
+			int mr = (int) ((r + size / 2) / size);
+			int mg = (int) ((g + size / 2) / size);
+			int mb = (int) ((bl + size / 2) / size);
+
+			int closest = colors[from[b]];
+			int closestDistance = Integer.MAX_VALUE;
+			for (int i = from[b]; i < to[b]; i++) {
+				int d = Math.abs(RGBLookupTable.red(colors[i]) - mr) + Math.abs(RGBLookupTable.green(colors[i]) - mg) + Math.abs(RGBLookupTable.blue(colors[i]) - mb);
+				if (d < closestDistance) {
+					closest = colors[i];
+					closestDistance = d;
+				}
+			}
+			palette[b] = closest;
+		}
+		return palette;
+	}
+
+	/**
+	 * Gets a channel of a packed color.
+	 */
+	private static int channel(int rgb, int channel) {
+		return (rgb >>> (16 - 8 * channel)) & 0xFF;
+	}
+
+	/**
+	 * Gets the range of a channel over a box.
+	 */
+	private static int range(int[] colors, int from, int to, int channel) {
+		int min = 255;
+		int max = 0;
+		for (int i = from; i < to; i++) {
+			int v = channel(colors[i], channel);
+			if (v < min) {
+				min = v;
+			}
+			if (v > max) {
+				max = v;
+			}
+		}
+		return max - min;
+	}
+
+	/**
+	 * Sorts a box along a channel.
+	 */
+	private static void sort(int[] colors, int from, int to, int channel) {
+		long[] keys = new long[to - from];
+		for (int i = from; i < to; i++) {
+			keys[i - from] = ((long) channel(colors[i], channel) << 24) | colors[i];
+		}
+		Arrays.sort(keys);
+		for (int i = from; i < to; i++) {
+			colors[i] = (int) (keys[i - from] & 0xFFFFFF);
+		}
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.mask.MaskException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * A filter ready to be applied to any number of images. Everything that only
+ * depends on the parameters, the SVM model or the RGB lookup table, is done
+ * once when the filter is compiled.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+abstract class CompiledFilter {
+
+	/**
+	 * Gives the lookup tables of the KNN filters, so that the filters
+	 * compiled again and again for the same colors share a cached table.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	interface LookupTableProvider {
+
+		/**
+		 * Gets the lookup table for the KNN parameters.
+		 *
+		 * @param parameters
+		 *            the parameters
+		 * @param executor
+		 *            the executor
+		 * @return the lookup table
+		 * @throws SignatureException
+		 *             the signature exception
+		 */
+		RGBLookupTable getLookupTable(FilterParameters parameters, BandExecutor executor) throws SignatureException;
+	}
+
+	/**
+	 * The KNN filter.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class KNNFilter extends CompiledFilter {
+
+		/** The parameters. */
+		private final FilterParameters parameters;
+
+		/** The lookup table, null if not used. */
+		private final RGBLookupTable lookupTable;
+
+		/**
+		 * Instantiates a new KNN filter.
+		 */
+		KNNFilter(FilterParameters parameters, RGBLookupTable lookupTable) {
+			super();
+
+			this.parameters = parameters;
+			this.lookupTable = lookupTable;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * plugins.nherve.colorpickerthreshold.CompiledFilter#filter(icy.image
+		 * .IcyBufferedImage,
+		 * plugins.nherve.colorpickerthreshold.ConvertedPlanes,
+		 * plugins.nherve.colorpickerthreshold.MaskWriter,
+		 * plugins.nherve.colorpickerthreshold.BandExecutor)
+		 */
+		@Override
+		void filter(IcyBufferedImage image, ConvertedPlanes converted, MaskWriter mask, BandExecutor executor) throws SignatureException {
+			ColorPlanes planes = ColorPlanes.of(image);
+			if ((planes != null) && (lookupTable != null)) {
+				lookupTable.filter(planes, mask, executor);
+			} else {
+				DistanceMap.compute(image, parameters.getColors(), parameters.getColorSpace(), parameters.getDistance(), usable(converted, image, parameters.getColorSpace(), false), executor).threshold(parameters.getThreshold(), mask, executor);
+			}
+		}
+	}
+
+	/**
+	 * The SVM filter.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class SVMFilter extends CompiledFilter {
+
+		/** The parameters. */
+		private final FilterParameters parameters;
+
+		/** The trained model. */
+		private final ColorSVM svm;
+
+		/**
+		 * Instantiates a new SVM filter.
+		 */
+		SVMFilter(FilterParameters parameters, ColorSVM svm) {
+			super();
+
+			this.parameters = parameters;
+			this.svm = svm;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * plugins.nherve.colorpickerthreshold.CompiledFilter#filter(icy.image
+		 * .IcyBufferedImage,
+		 * plugins.nherve.colorpickerthreshold.ConvertedPlanes,
+		 * plugins.nherve.colorpickerthreshold.MaskWriter,
+		 * plugins.nherve.colorpickerthreshold.BandExecutor)
+		 */
+		@Override
+		void filter(IcyBufferedImage image, ConvertedPlanes converted, MaskWriter mask, BandExecutor executor) throws SignatureException {
+			ColorPlanes planes = ColorPlanes.of(image);
+			if ((planes != null) && parameters.isUniqueColors()) {
+				filterUniqueColors(planes, mask, executor);
+			} else {
+				filterAllPixels(image, planes, usable(converted, image, parameters.getColorSpace(), true), mask, executor);
+			}
+		}
+
+		/**
+		 * Predicts all the pixels of an image.
+		 */
+		private void filterAllPixels(final IcyBufferedImage image, final ColorPlanes planes, final ConvertedPlanes converted, final MaskWriter mask, BandExecutor executor) throws SignatureException {
+			final int cs = parameters.getColorSpace();
+			final int w = image.getWidth();
+			executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+				@Override
+				void process(int firstRow, int lastRow) throws SignatureException {
+					ColorSVM.Predictor predictor = svm.newPredictor(parameters.isDecisionGrid());
+					ColorConverter converter = new ColorConverter(cs, true);
+					ImageRows rows = ((converted == null) && (planes == null)) ? new ImageRows(image) : null;
+					double[] cc = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+
+					for (int y = firstRow; y < lastRow; y++) {
+						if (rows != null) {
+							rows.read(y);
+						}
+						for (int word = 0, x0 = 0; x0 < w; word++, x0 += BitMask.WORD_SIZE) {
+							int end = Math.min(w, x0 + BitMask.WORD_SIZE);
+							long bits = 0;
+							for (int x = x0; x < end; x++) {
+								if (converted != null) {
+									converted.get(y * w + x, cc);
+								} else if (planes != null) {
+									converter.convert(planes.rgb(y * w + x), cc);
+								} else {
+									converter.convert(rows, x, cc);
+								}
+								if (predictor.isPositive(cc)) {
+									bits |= BitMask.bit(x);
+								}
+							}
+							mask.setWord(y, word, bits);
+						}
+					}
+				}
+			});
+		}
+
+		/**
+		 * Predicts each distinct color of an image only once, then scatters
+		 * the predictions back to the pixels.
+		 */
+		private void filterUniqueColors(final ColorPlanes planes, final MaskWriter mask, BandExecutor executor) throws SignatureException {
+			final int cs = parameters.getColorSpace();
+			final ColorDictionary dict = ColorDictionary.of(planes);
+			final boolean[] positive = new boolean[dict.size()];
+
+			executor.execute(dict.size(), new BandExecutor.BandTask() {
+				@Override
+				void process(int first, int last) throws SignatureException {
+					ColorSVM.Predictor predictor = svm.newPredictor(parameters.isDecisionGrid());
+					ColorConverter converter = new ColorConverter(cs, true);
+					double[] cc = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+					for (int i = first; i < last; i++) {
+						converter.convert(dict.getColor(i), cc);
+						positive[i] = predictor.isPositive(cc);
+					}
+				}
+			});
+
+			final int w = planes.getWidth();
+			executor.execute(planes.getHeight(), new BandExecutor.BandTask() {
+				@Override
+				void process(int firstRow, int lastRow) {
+					for (int y = firstRow; y < lastRow; y++) {
+						int offset = y * w;
+						for (int word = 0, x0 = 0; x0 < w; word++, x0 += BitMask.WORD_SIZE) {
+							int end = Math.min(w, x0 + BitMask.WORD_SIZE);
+							long bits = 0;
+							for (int x = x0; x < end; x++) {
+								if (positive[dict.indexOf(planes.rgb(offset + x))]) {
+									bits |= BitMask.bit(x);
+								}
+							}
+							mask.setWord(y, word, bits);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Compiles a filter.
+	 *
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor, used to build the lookup table
+	 * @return the compiled filter
+	 * @throws MaskException
+	 *             if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static CompiledFilter compile(FilterParameters parameters, BandExecutor executor) throws MaskException, SignatureException {
+		return compile(parameters, executor, null);
+	}
+
+	/**
+	 * Compiles a filter, reusing the SVM models already trained.
+	 *
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor, used to build the lookup table
+	 * @param models
+	 *            the cache of the SVM models, may be null
+	 * @return the compiled filter
+	 * @throws MaskException
+	 *             if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static CompiledFilter compile(FilterParameters parameters, BandExecutor executor, ModelCache models) throws MaskException, SignatureException {
+		return compile(parameters, executor, models, null);
+	}
+
+	/**
+	 * Compiles the parameters, reusing the trained models of a cache and the
+	 * lookup tables of a provider.
+	 *
+	 * @param parameters
+	 *            the parameters
+	 * @param executor
+	 *            the executor
+	 * @param models
+	 *            the model cache, may be null
+	 * @param lookupTables
+	 *            the provider of the lookup tables, null to build them
+	 * @return the compiled filter
+	 * @throws MaskException
+	 *             if the parameters are not complete
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static CompiledFilter compile(FilterParameters parameters, BandExecutor executor, ModelCache models, LookupTableProvider lookupTables) throws MaskException, SignatureException {
+		if (parameters.getMethod() == FilterParameters.KNN) {
+			if (parameters.getColors().length == 0) {
+				throw new MaskException("No color selected, filtering aborted");
+			}
+			RGBLookupTable lookupTable = null;
+			if (parameters.isLookupTable() && (lookupTables != null)) {
+				lookupTable = lookupTables.getLookupTable(parameters, executor);
+			} else if (parameters.isLookupTable()) {
+				lookupTable = RGBLookupTable.build(parameters.getColors(), parameters.getColorSpace(), parameters.getDistance(), parameters.getThreshold(), executor);
+			}
+			return new KNNFilter(parameters, lookupTable);
+		}
+
+		if (parameters.getPositive().length == 0) {
+			throw new MaskException("No positive color selected, filtering aborted");
+		}
+		if (parameters.getNegative().length == 0) {
+			throw new MaskException("No negative color selected, filtering aborted");
+		}
+
+		if (models != null) {
+			ColorSVM svm = models.get(parameters);
+			if (svm != null) {
+				if (parameters.isDecisionGrid() && (svm.getGrid() == null)) {
+					svm.buildGrid(executor);
+					models.gridBuilt(parameters, svm);
+				}
+				return new SVMFilter(parameters, svm);
+			}
+		}
+
+		int cs = parameters.getColorSpace();
+		double[][] pos = new double[parameters.getPositive().length][];
+		double[][] neg = new double[parameters.getNegative().length][];
+
+		for (int i = 0; i < pos.length; i++) {
+			int rgb = parameters.getPositive()[i];
+			pos[i] = ColorSpaceTools.getColorComponentsD_0_1(cs, (rgb >>> 16) & 0xFF, (rgb >>> 8) & 0xFF, rgb & 0xFF);
+		}
+		for (int i = 0; i < neg.length; i++) {
+			int rgb = parameters.getNegative()[i];
+			neg[i] = ColorSpaceTools.getColorComponentsD_0_1(cs, (rgb >>> 16) & 0xFF, (rgb >>> 8) & 0xFF, rgb & 0xFF);
+		}
+
+		ColorSVM svm = ColorSVM.train(pos, neg, parameters.getKernel(), parameters.getC(), parameters.getGamma());
+		if (parameters.isDecisionGrid()) {
+			svm.buildGrid(executor);
+		}
+		if (models != null) {
+			models.put(parameters, svm);
+		}
+		return new SVMFilter(parameters, svm);
+	}
+
+	/**
+	 * Gets converted planes if they match what a filter needs.
+	 */
+	private static ConvertedPlanes usable(ConvertedPlanes converted, IcyBufferedImage image, int colorSpace, boolean unitScale) {
+		if ((converted != null) && converted.isConvertedFor(image, colorSpace, unitScale)) {
+			return converted;
+		}
+		return null;
+	}
+
+	/**
+	 * Fills a mask with the pixels of an image kept by this filter.
+	 *
+	 * @param image
+	 *            the image
+	 * @param mask
+	 *            the mask to fill, of the size of the image
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void filter(IcyBufferedImage image, MaskWriter mask, BandExecutor executor) throws SignatureException {
+		filter(image, null, mask, executor);
+	}
+
+	/**
+	 * Fills a mask with the pixels of an image kept by this filter, reading
+	 * the components of the pixels from converted planes when they match the
+	 * color space of the filter, [0, 255] for the KNN method and [0, 1] for
+	 * the SVM method.
+	 *
+	 * @param image
+	 *            the image
+	 * @param converted
+	 *            the converted planes of the image, may be null
+	 * @param mask
+	 *            the mask to fill, of the size of the image
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	abstract void filter(IcyBufferedImage image, ConvertedPlanes converted, MaskWriter mask, BandExecutor executor) throws SignatureException;
+}
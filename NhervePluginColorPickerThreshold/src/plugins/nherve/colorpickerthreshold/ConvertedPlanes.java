@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * The components of all the pixels of an 8 bits RGB image in a color
+ * space and scale, read through the color index of an {@link IndexedImage}
+ * and the palette of its distinct colors. The palette is computed by a
+ * {@link ColorConverter}, so the components are exactly the values the
+ * filters would compute pixel by pixel.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ConvertedPlanes {
+
+	/** The image. */
+	private final IcyBufferedImage image;
+
+	/** The color space. */
+	private final int colorSpace;
+
+	/** True for the [0, 1] scale, false for the [0, 255] one. */
+	private final boolean unitScale;
+
+	/** The index of the color of each pixel. */
+	private final int[] indexes;
+
+	/** The three components of each distinct color. */
+	private final double[] palette;
+
+	/**
+	 * Instantiates new converted planes.
+	 */
+	private ConvertedPlanes(IcyBufferedImage image, int colorSpace, boolean unitScale, int[] indexes, double[] palette) {
+		super();
+
+		this.image = image;
+		this.colorSpace = colorSpace;
+		this.unitScale = unitScale;
+		this.indexes = indexes;
+		this.palette = palette;
+	}
+
+	/**
+	 * Checks if converting an image once is worth it.
+	 * 
+	 * @param image
+	 *            the image
+	 * @param colorSpace
+	 *            the color space
+	 * @return true, for the images that can be indexed, in a color space
+	 *         other than RGB, whose conversion is only a table lookup
+	 */
+	static boolean isWorthIt(IcyBufferedImage image, int colorSpace) {
+		return (colorSpace != ColorSpaceTools.RGB) && IndexedImage.isIndexable(image);
+	}
+
+	/**
+	 * Converts an indexed image.
+	 * 
+	 * @param indexed
+	 *            the indexed image
+	 * @param colorSpace
+	 *            the color space
+	 * @param unitScale
+	 *            true for components in [0, 1], false for [0, 255]
+	 * @param executor
+	 *            the executor
+	 * @return the converted planes
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static ConvertedPlanes convert(IndexedImage indexed, int colorSpace, boolean unitScale, BandExecutor executor) throws SignatureException {
+		double[] palette = indexed.getPalette(colorSpace, unitScale, executor);
+		return new ConvertedPlanes(indexed.getImage(), colorSpace, unitScale, indexed.getIndexes(), palette);
+	}
+
+	/**
+	 * Checks if the planes have been converted for these parameters.
+	 * 
+	 * @param image
+	 *            the image
+	 * @param colorSpace
+	 *            the color space
+	 * @param unitScale
+	 *            the scale
+	 * @return true, if they are still valid
+	 */
+	boolean isConvertedFor(IcyBufferedImage image, int colorSpace, boolean unitScale) {
+		return (this.image == image) && (this.colorSpace == colorSpace) && (this.unitScale == unitScale);
+	}
+
+	/**
+	 * Gets the components of a pixel.
+	 * 
+	 * @param idx
+	 *            the pixel index, y * width + x
+	 * @param components
+	 *            the array receiving the components
+	 */
+	void get(int idx, double[] components) {
+		int p = 3 * indexes[idx];
+		components[0] = palette[p];
+		components[1] = palette[p + 1];
+		components[2] = palette[p + 2];
+	}
+
+	/**
+	 * Gets the color space.
+	 * 
+	 * @return the color space
+	 */
+	int getColorSpace() {
+		return colorSpace;
+	}
+}
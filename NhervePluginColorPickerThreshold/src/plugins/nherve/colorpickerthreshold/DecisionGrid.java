@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * The decision of an SVM model over a regular grid of the unit cube of the
+ * color components. Each cell is either certainly inside the positive
+ * region, certainly outside, or crossed by the boundary. The certainty
+ * comes from bounds of the decision function over the whole cell, so only
+ * the colors falling in boundary cells need an exact prediction and the
+ * result is the same as predicting every color.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class DecisionGrid {
+
+	/** The cells certainly on the negative side. */
+	final static byte OUTSIDE = 0;
+
+	/** The cells certainly on the positive side. */
+	final static byte INSIDE = 1;
+
+	/** The cells that need an exact prediction. */
+	final static byte BOUNDARY = 2;
+
+	/** The number of cells on each axis. */
+	private final static int RESOLUTION = 64;
+
+	/** The number of cells on each axis of a coarse block. */
+	private final static int BLOCK = 4;
+
+	/**
+	 * The enlargement of the cells, so that rounding when locating a color
+	 * can't put it in a cell whose bounds don't contain it.
+	 */
+	private final static double EPSILON = 1e-9;
+
+	/** The cells. */
+	private final byte[] cells;
+
+	/** The number of boundary cells. */
+	private int nbBoundary;
+
+	/**
+	 * Instantiates a new, empty, decision grid.
+	 */
+	private DecisionGrid() {
+		super();
+
+		cells = new byte[RESOLUTION * RESOLUTION * RESOLUTION];
+	}
+
+	/**
+	 * Builds the grid of a model. The cells are first classified by coarse
+	 * blocks, only the blocks crossed by the boundary are refined.
+	 *
+	 * @param svm
+	 *            the model, with a kernel that can be bounded
+	 * @param executor
+	 *            the executor
+	 * @return the grid
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static DecisionGrid build(final ColorSVM svm, BandExecutor executor) throws SignatureException {
+		final DecisionGrid grid = new DecisionGrid();
+		final int nbBlocks = RESOLUTION / BLOCK;
+
+		executor.execute(nbBlocks, new BandExecutor.BandTask() {
+			@Override
+			void process(int first, int last) {
+				double[] lo = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+				double[] hi = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+				for (int b0 = first; b0 < last; b0++) {
+					for (int b1 = 0; b1 < nbBlocks; b1++) {
+						for (int b2 = 0; b2 < nbBlocks; b2++) {
+							bounds(b0 * BLOCK, b1 * BLOCK, b2 * BLOCK, BLOCK, lo, hi);
+							byte block = svm.classify(lo, hi);
+							for (int i0 = b0 * BLOCK; i0 < (b0 + 1) * BLOCK; i0++) {
+								for (int i1 = b1 * BLOCK; i1 < (b1 + 1) * BLOCK; i1++) {
+									for (int i2 = b2 * BLOCK; i2 < (b2 + 1) * BLOCK; i2++) {
+										byte cell = block;
+										if (block == BOUNDARY) {
+											bounds(i0, i1, i2, 1, lo, hi);
+											cell = svm.classify(lo, hi);
+										}
+										grid.cells[(i0 * RESOLUTION + i1) * RESOLUTION + i2] = cell;
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+
+		for (byte cell : grid.cells) {
+			if (cell == BOUNDARY) {
+				grid.nbBoundary++;
+			}
+		}
+
+		return grid;
+	}
+
+	/**
+	 * Computes the bounds of a box of cells.
+	 */
+	private static void bounds(int i0, int i1, int i2, int size, double[] lo, double[] hi) {
+		lo[0] = (double) i0 / RESOLUTION - EPSILON;
+		lo[1] = (double) i1 / RESOLUTION - EPSILON;
+		lo[2] = (double) i2 / RESOLUTION - EPSILON;
+		hi[0] = (double) (i0 + size) / RESOLUTION + EPSILON;
+		hi[1] = (double) (i1 + size) / RESOLUTION + EPSILON;
+		hi[2] = (double) (i2 + size) / RESOLUTION + EPSILON;
+	}
+
+	/**
+	 * Gets the cell of a color.
+	 *
+	 * @param x
+	 *            the color components, in [0, 1]
+	 * @return INSIDE, OUTSIDE or BOUNDARY. Colors out of the unit cube are
+	 *         always on the boundary.
+	 */
+	byte classify(double[] x) {
+		int i0 = index(x[0]);
+		int i1 = index(x[1]);
+		int i2 = index(x[2]);
+		if ((i0 < 0) || (i1 < 0) || (i2 < 0)) {
+			return BOUNDARY;
+		}
+		return cells[(i0 * RESOLUTION + i1) * RESOLUTION + i2];
+	}
+
+	/**
+	 * Gets the index of a component on an axis, -1 if out of the unit range.
+	 */
+	private static int index(double v) {
+		if (!(v >= 0) || (v > 1)) {
+			return -1;
+		}
+		return Math.min(RESOLUTION - 1, (int) (v * RESOLUTION));
+	}
+
+	/**
+	 * Gets the fraction of the cells that need an exact prediction.
+	 *
+	 * @return the boundary ratio
+	 */
+	double getBoundaryRatio() {
+		return (double) nbBoundary / cells.length;
+	}
+
+	/**
+	 * Gets the memory used by the grid.
+	 *
+	 * @return the size in bytes
+	 */
+	long getMemorySize() {
+		return cells.length;
+	}
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.util.Arrays;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * The minimum distance of each pixel of an image to the picked colors, for
+ * the KNN method. The thresholds are integers, so the map stores for each
+ * pixel the smallest threshold that keeps it, floor(distance) + 1, as a
+ * short. The mask for any threshold is then a single compare pass, with the
+ * same result as comparing every distance to the threshold. The histogram of
+ * the levels, counted while the map is computed, gives the area of the mask
+ * for any threshold and a suggested threshold without any other pass. When a
+ * single color is added or removed, the map of the new colors is derived
+ * from the previous one instead of being computed again.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class DistanceMap {
+
+	/** The level of the pixels that are never kept. */
+	private final static short NEVER = Short.MAX_VALUE;
+
+	/**
+	 * The number of bins of the histogram, one per level, the last one
+	 * counting all the levels from HISTOGRAM_SIZE - 1.
+	 */
+	final static int HISTOGRAM_SIZE = 1024;
+
+	/** The image. */
+	private final IcyBufferedImage image;
+
+	/** The packed RGB reference colors. */
+	private final int[] colors;
+
+	/** The color space. */
+	private final int colorSpace;
+
+	/** The distance. */
+	private final ColorDistance distance;
+
+	/** The smallest threshold keeping each pixel. */
+	private final short[] levels;
+
+	/** The number of pixels of each level. */
+	private final long[] histogram;
+
+	/**
+	 * Instantiates a new, empty, distance map.
+	 */
+	private DistanceMap(IcyBufferedImage image, int[] colors, int colorSpace, ColorDistance distance) {
+		super();
+
+		this.image = image;
+		this.colors = colors.clone();
+		this.colorSpace = colorSpace;
+		this.distance = distance;
+		this.levels = new short[image.getWidth() * image.getHeight()];
+		this.histogram = new long[HISTOGRAM_SIZE];
+	}
+
+	/**
+	 * Computes the distance map of an image.
+	 *
+	 * @param image
+	 *            the image
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @param converted
+	 *            the image already converted to the color space, in [0,
+	 *            255], may be null
+	 * @param executor
+	 *            the executor
+	 * @return the distance map
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static DistanceMap compute(final IcyBufferedImage image, int[] colors, final int colorSpace, final ColorDistance distance, final ConvertedPlanes converted, BandExecutor executor) throws SignatureException {
+		final DistanceMap map = new DistanceMap(image, colors, colorSpace, distance);
+		final short[] levels = map.levels;
+
+		double[][] csColors = new double[colors.length][];
+		for (int k = 0; k < colors.length; k++) {
+			csColors[k] = ColorSpaceTools.getColorComponentsD_0_255(colorSpace, (colors[k] >>> 16) & 0xFF, (colors[k] >>> 8) & 0xFF, colors[k] & 0xFF);
+		}
+		final ColorIndex index = new ColorIndex(csColors);
+
+		final ColorPlanes planes = ColorPlanes.of(image);
+		final int w = image.getWidth();
+		if ((planes != null) && RGBDistanceKernel.accepts(colorSpace, distance, colors.length)) {
+			final RGBDistanceKernel kernel = new RGBDistanceKernel(colors, distance);
+			executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+				@Override
+				void process(int firstRow, int lastRow) {
+					int[] r = new int[w];
+					int[] g = new int[w];
+					int[] b = new int[w];
+					int[] best = new int[w];
+
+					for (int j = firstRow; j < lastRow; j++) {
+						int offset = j * w;
+						kernel.floorDistances(planes, offset, r, g, b, best);
+						for (int i = 0; i < w; i++) {
+							levels[offset + i] = level(best[i]);
+						}
+					}
+					map.count(firstRow * w, lastRow * w);
+				}
+			});
+		} else if (converted != null) {
+			executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+				@Override
+				void process(int firstRow, int lastRow) throws SignatureException {
+					double[] cc = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+					for (int idx = firstRow * w; idx < lastRow * w; idx++) {
+						converted.get(idx, cc);
+						levels[idx] = level(index.nearest(cc, distance));
+					}
+					map.count(firstRow * w, lastRow * w);
+				}
+			});
+		} else if (planes != null) {
+			executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+				@Override
+				void process(int firstRow, int lastRow) throws SignatureException {
+					ColorConverter converter = new ColorConverter(colorSpace, false);
+					double[] c0 = new double[w];
+					double[] c1 = new double[w];
+					double[] c2 = new double[w];
+					double[] cc = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+
+					for (int j = firstRow; j < lastRow; j++) {
+						int offset = j * w;
+						converter.convert(planes, offset, w, c0, c1, c2);
+						for (int i = 0; i < w; i++) {
+							cc[0] = c0[i];
+							cc[1] = c1[i];
+							cc[2] = c2[i];
+							levels[offset + i] = level(index.nearest(cc, distance));
+						}
+					}
+					map.count(firstRow * w, lastRow * w);
+				}
+			});
+		} else {
+			executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+				@Override
+				void process(int firstRow, int lastRow) throws SignatureException {
+					int idx = firstRow * w;
+					for (int j = firstRow; j < lastRow; j++) {
+						for (int i = 0; i < w; i++) {
+							double[] cc = ColorSpaceTools.getColorComponentsD_0_255(image, colorSpace, i, j);
+							levels[idx] = level(index.nearest(cc, distance));
+							idx++;
+						}
+					}
+					map.count(firstRow * w, lastRow * w);
+				}
+			});
+		}
+
+		return map;
+	}
+
+	/**
+	 * Adds the levels of a band of pixels to the histogram, counted apart
+	 * first so that the threads only share the final merge.
+	 */
+	private void count(int first, int last) {
+		int[] bins = new int[HISTOGRAM_SIZE];
+		for (int idx = first; idx < last; idx++) {
+			bins[Math.min(levels[idx], HISTOGRAM_SIZE - 1)]++;
+		}
+		synchronized (histogram) {
+			for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+				histogram[i] += bins[i];
+			}
+		}
+	}
+
+	/**
+	 * Gets the smallest integer threshold t for which distance < t.
+	 */
+	private static short level(double distance) {
+		if (distance >= NEVER - 1) {
+			return NEVER;
+		}
+		return (short) (Math.floor(distance) + 1);
+	}
+
+	/**
+	 * Checks if the map has been computed for these parameters.
+	 *
+	 * @param image
+	 *            the image
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @return true, if it is still valid
+	 */
+	boolean isComputedFor(IcyBufferedImage image, int[] colors, int colorSpace, ColorDistance distance) {
+		return isComputedFor(image, colorSpace, distance) && Arrays.equals(this.colors, colors);
+	}
+
+	/**
+	 * Checks if the map has been computed for an image, a color space and a
+	 * distance, whatever the colors.
+	 */
+	private boolean isComputedFor(IcyBufferedImage image, int colorSpace, ColorDistance distance) {
+		return (this.image == image) && (this.colorSpace == colorSpace) && (this.distance.getClass() == distance.getClass());
+	}
+
+	/**
+	 * Checks if some colors are the colors of the map and one more, at the
+	 * end, as {@link ColorPickerThreshold.ColorBox} adds them.
+	 */
+	private boolean isColorAdded(int[] newColors) {
+		return (newColors.length == colors.length + 1) && Arrays.equals(Arrays.copyOf(newColors, colors.length), colors);
+	}
+
+	/**
+	 * Gets the index of the only color of the map missing from some colors.
+	 * 
+	 * @return the index, -1 if the colors are not the ones of the map minus
+	 *         one
+	 */
+	private int getRemovedColor(int[] newColors) {
+		if (newColors.length != colors.length - 1) {
+			return -1;
+		}
+		int k = 0;
+		while ((k < newColors.length) && (newColors[k] == colors[k])) {
+			k++;
+		}
+		if (!Arrays.equals(Arrays.copyOfRange(colors, k + 1, colors.length), Arrays.copyOfRange(newColors, k, newColors.length))) {
+			return -1;
+		}
+		return k;
+	}
+
+	/**
+	 * Checks if the map for other colors can be derived from this one.
+	 * 
+	 * @param image
+	 *            the image
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @return true, if the colors differ by a single color added or removed,
+	 *         for an 8 bits RGB image
+	 */
+	boolean canUpdate(IcyBufferedImage image, int[] colors, int colorSpace, ColorDistance distance) {
+		return isComputedFor(image, colorSpace, distance) && (ColorPlanes.of(image) != null) && (isColorAdded(colors) || (getRemovedColor(colors) >= 0));
+	}
+
+	/**
+	 * Derives the map of colors differing by a single color. An added color
+	 * can only lower the levels, so only its distance is computed, and only
+	 * for the pixels that it may bring closer. A removed color only raises
+	 * the levels of the pixels it was the nearest of : its distance tells
+	 * which ones, and only those are compared again to all the other colors.
+	 * The levels and the histogram are the same as the ones of
+	 * {@link #compute}.
+	 * 
+	 * @param newColors
+	 *            the packed RGB reference colors, see {@link #canUpdate}
+	 * @param converted
+	 *            the image already converted to the color space, in [0,
+	 *            255], may be null
+	 * @param executor
+	 *            the executor
+	 * @return the new distance map, this one being left untouched
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	DistanceMap update(int[] newColors, final ConvertedPlanes converted, BandExecutor executor) throws SignatureException {
+		final boolean added = isColorAdded(newColors);
+		final int changed = added ? newColors[colors.length] : colors[getRemovedColor(newColors)];
+		final double[] reference = ColorSpaceTools.getColorComponentsD_0_255(colorSpace, (changed >>> 16) & 0xFF, (changed >>> 8) & 0xFF, changed & 0xFF);
+
+		ColorIndex remaining = null;
+		if (!added) {
+			double[][] csColors = new double[newColors.length][];
+			for (int k = 0; k < newColors.length; k++) {
+				csColors[k] = ColorSpaceTools.getColorComponentsD_0_255(colorSpace, (newColors[k] >>> 16) & 0xFF, (newColors[k] >>> 8) & 0xFF, newColors[k] & 0xFF);
+			}
+			remaining = new ColorIndex(csColors);
+		}
+		final ColorIndex index = remaining;
+
+		final DistanceMap map = new DistanceMap(image, newColors, colorSpace, distance);
+		final short[] previous = levels;
+		final short[] next = map.levels;
+		final ColorPlanes planes = ColorPlanes.of(image);
+		final int w = image.getWidth();
+
+		executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+			@Override
+			void process(int firstRow, int lastRow) throws SignatureException {
+				ColorConverter converter = null;
+				double[] c0 = null;
+				double[] c1 = null;
+				double[] c2 = null;
+				if (converted == null) {
+					converter = new ColorConverter(colorSpace, false);
+					c0 = new double[w];
+					c1 = new double[w];
+					c2 = new double[w];
+				}
+				double[] cc = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+
+				for (int j = firstRow; j < lastRow; j++) {
+					int offset = j * w;
+					if (converter != null) {
+						converter.convert(planes, offset, w, c0, c1, c2);
+					}
+					for (int i = 0; i < w; i++) {
+						short level = previous[offset + i];
+						// no color can keep a pixel below level 1
+						if (!added || (level > 1)) {
+							if (converter != null) {
+								cc[0] = c0[i];
+								cc[1] = c1[i];
+								cc[2] = c2[i];
+							} else {
+								converted.get(offset + i, cc);
+							}
+							short l = level(distance.computeDistance(cc, reference));
+							if (added) {
+								level = (short) Math.min(level, l);
+							} else if (l == level) {
+								level = level(index.nearest(cc, distance));
+							}
+						}
+						next[offset + i] = level;
+					}
+				}
+				map.count(firstRow * w, lastRow * w);
+			}
+		});
+
+		return map;
+	}
+
+	/**
+	 * Gets the number of pixels a threshold keeps, without filtering.
+	 * 
+	 * @param threshold
+	 *            the threshold, below HISTOGRAM_SIZE - 1
+	 * @return the area of the mask
+	 */
+	long getArea(int threshold) {
+		int last = Math.min(threshold, HISTOGRAM_SIZE - 2);
+		long area = 0;
+		synchronized (histogram) {
+			for (int i = 0; i <= last; i++) {
+				area += histogram[i];
+			}
+		}
+		return area;
+	}
+
+	/**
+	 * Suggests a threshold with the method of Otsu : the one separating the
+	 * pixels close to the picked colors from the other ones with the largest
+	 * variance between the two groups.
+	 * 
+	 * @return the threshold, 0 if all the pixels have the same level
+	 */
+	int suggestThreshold() {
+		long[] h;
+		synchronized (histogram) {
+			h = histogram.clone();
+		}
+		double total = 0;
+		double sum = 0;
+		for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+			total += h[i];
+			sum += (double) i * h[i];
+		}
+
+		int best = 0;
+		double bestVariance = -1;
+		double n0 = 0;
+		double sum0 = 0;
+		for (int t = 0; t < HISTOGRAM_SIZE - 1; t++) {
+			n0 += h[t];
+			sum0 += (double) t * h[t];
+			double n1 = total - n0;
+			if ((n0 == 0) || (n1 == 0)) {
+				continue;
+			}
+			double d = sum0 / n0 - (sum - sum0) / n1;
+			double variance = n0 * n1 * d * d;
+			if (variance > bestVariance) {
+				bestVariance = variance;
+				best = t;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Gets the number of pixels.
+	 * 
+	 * @return the number of pixels
+	 */
+	int getNbPixels() {
+		return levels.length;
+	}
+
+	/**
+	 * Fills a mask with the pixels kept by a threshold.
+	 *
+	 * @param threshold
+	 *            the threshold
+	 * @param mask
+	 *            the mask to fill
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void threshold(final int threshold, final MaskWriter mask, BandExecutor executor) throws SignatureException {
+		final int w = image.getWidth();
+
+		executor.execute(image.getHeight(), new BandExecutor.BandTask() {
+			@Override
+			void process(int firstRow, int lastRow) {
+				for (int y = firstRow; y < lastRow; y++) {
+					int offset = y * w;
+					for (int word = 0, x0 = 0; x0 < w; word++, x0 += BitMask.WORD_SIZE) {
+						int end = Math.min(w, x0 + BitMask.WORD_SIZE);
+						long bits = 0;
+						for (int x = x0; x < end; x++) {
+							if (levels[offset + x] <= threshold) {
+								bits |= BitMask.bit(x);
+							}
+						}
+						mask.setWord(y, word, bits);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	int getWidth() {
+		return image.getWidth();
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	int getHeight() {
+		return image.getHeight();
+	}
+}
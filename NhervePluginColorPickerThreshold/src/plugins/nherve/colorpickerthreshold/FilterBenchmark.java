@@ -0,0 +1,308 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+import icy.type.TypeUtil;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.L1ColorDistance;
+import plugins.nherve.toolbox.image.feature.L2ColorDistance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.mask.MaskException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.libsvm.svm_parameter;
+
+/**
+ * Benchmark of the filtering hot paths, over image sizes, number of picked
+ * colors, color spaces, distances and SVM kernels. Prints one line per case
+ * with the throughput in megapixels per second and the bytes allocated per
+ * pixel. Everything runs on the calling thread so that the allocations of
+ * the thread are those of the filter.
+ *
+ * <pre>
+ * java plugins.nherve.colorpickerthreshold.FilterBenchmark [size ...]
+ * </pre>
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class FilterBenchmark {
+
+	/**
+	 * A benchmarked case.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static abstract class Case {
+
+		/**
+		 * Filters the image once.
+		 *
+		 * @param mask
+		 *            the mask to fill
+		 * @throws SignatureException
+		 *             the signature exception
+		 */
+		abstract void run(BitMask mask) throws SignatureException;
+	}
+
+	/** The default image sizes. */
+	private final static int[] DEFAULT_SIZES = { 256, 1024 };
+
+	/** The numbers of picked colors. */
+	private final static int[] NB_COLORS = { 1, 8, ColorPickerThreshold.COL_GRID_MAXCOLORS };
+
+	/** The color spaces. */
+	private final static int[] COLOR_SPACES = { ColorSpaceTools.RGB, ColorSpaceTools.RGB_TO_HSV, ColorSpaceTools.RGB_TO_H1H2H3 };
+
+	/** The color spaces names. */
+	private final static String[] COLOR_SPACES_NAMES = { "RGB", "HSV", "H1H2H3" };
+
+	/** The kernels. */
+	private final static int[] KERNELS = { svm_parameter.LINEAR, svm_parameter.TRIANGULAR, svm_parameter.RBF };
+
+	/** The kernels names. */
+	private final static String[] KERNELS_NAMES = { "LINEAR", "TRIANGULAR", "RBF" };
+
+	/** The threshold of the KNN cases. */
+	private final static int THRESHOLD = 50;
+
+	/** The number of untimed runs. */
+	private final static int WARMUP_ITERATIONS = 3;
+
+	/** The minimum duration of the timed runs, in milliseconds. */
+	private final static long MIN_DURATION = 1000;
+
+	/** The seed, the images and colors are the same from one run to the other. */
+	private final static long SEED = 20130101L;
+
+	/** The executor, sequential. */
+	private final BandExecutor executor;
+
+	/** The thread bean, null if allocations can't be measured. */
+	private final com.sun.management.ThreadMXBean threads;
+
+	/**
+	 * Instantiates a new filter benchmark.
+	 */
+	FilterBenchmark() {
+		super();
+
+		executor = new BandExecutor(1);
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			threads = (com.sun.management.ThreadMXBean) bean;
+		} else {
+			threads = null;
+		}
+	}
+
+	/**
+	 * Creates a test image, smooth gradients with some noise, so that the
+	 * number of distinct colors is close to the one of a real picture.
+	 */
+	private static IcyBufferedImage createImage(int size, Random rd) {
+		IcyBufferedImage image = new IcyBufferedImage(size, size, 3, TypeUtil.TYPE_BYTE);
+		byte[] r = image.getDataXYAsByte(0);
+		byte[] g = image.getDataXYAsByte(1);
+		byte[] b = image.getDataXYAsByte(2);
+		int idx = 0;
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				r[idx] = (byte) clamp(x * 256 / size + rd.nextInt(16) - 8);
+				g[idx] = (byte) clamp(y * 256 / size + rd.nextInt(16) - 8);
+				b[idx] = (byte) clamp((x + y) * 128 / size + rd.nextInt(16) - 8);
+				idx++;
+			}
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(255, v));
+	}
+
+	/**
+	 * Picks colors in an image, as the user would.
+	 */
+	private static int[] pickColors(IcyBufferedImage image, int nb, Random rd) {
+		ColorPlanes planes = ColorPlanes.of(image);
+		int[] colors = new int[nb];
+		for (int i = 0; i < nb; i++) {
+			colors[i] = planes.rgb(rd.nextInt(image.getWidth() * image.getHeight()));
+		}
+		return colors;
+	}
+
+	/**
+	 * Times a case and prints its line.
+	 */
+	private void measure(String name, IcyBufferedImage image, Case c) throws SignatureException {
+		int nbPixels = image.getWidth() * image.getHeight();
+		BitMask mask = new BitMask(image.getWidth(), image.getHeight());
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			c.run(mask);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long allocated = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		int iterations = 0;
+		while (elapsed < MIN_DURATION * 1000000L) {
+			c.run(mask);
+			iterations++;
+			elapsed = System.nanoTime() - start;
+		}
+		if (threads != null) {
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+		}
+
+		double pixels = (double) nbPixels * iterations;
+		double mpps = pixels / (elapsed / 1e9) / 1e6;
+		String bpp = threads != null ? String.format("%.3f", allocated / pixels) : "n/a";
+		System.out.println(String.format("%-60s %10.2f Mpixels/s %10s bytes/pixel", name, mpps, bpp));
+	}
+
+	/**
+	 * Benchmarks the KNN method.
+	 */
+	private void knn(final IcyBufferedImage image, int[] colors, final int cs, String csName, final ColorDistance distance, String dName) throws SignatureException, MaskException {
+		String prefix = "knn " + image.getWidth() + " " + colors.length + " " + csName + " " + dName;
+		final double[][] csColors = new double[colors.length][];
+		for (int k = 0; k < colors.length; k++) {
+			csColors[k] = ColorSpaceTools.getColorComponentsD_0_255(cs, (colors[k] >>> 16) & 0xFF, (colors[k] >>> 8) & 0xFF, colors[k] & 0xFF);
+		}
+		measure(prefix + " reference", image, new Case() {
+			@Override
+			void run(BitMask mask) throws SignatureException {
+				for (int j = 0; j < image.getHeight(); j++) {
+					for (int i = 0; i < image.getWidth(); i++) {
+						double[] cc = ColorSpaceTools.getColorComponentsD_0_255(image, cs, i, j);
+						for (int k = 0; k < csColors.length; k++) {
+							if (distance.computeDistance(cc, csColors[k]) < THRESHOLD) {
+								mask.set(i, j);
+								break;
+							}
+						}
+					}
+				}
+			}
+		});
+
+		final CompiledFilter map = CompiledFilter.compile(FilterParameters.knn(cs, colors, distance, THRESHOLD, false), executor);
+		measure(prefix + " distance map", image, new Case() {
+			@Override
+			void run(BitMask mask) throws SignatureException {
+				map.filter(image, mask, executor);
+			}
+		});
+
+		final CompiledFilter table = CompiledFilter.compile(FilterParameters.knn(cs, colors, distance, THRESHOLD, true), executor);
+		measure(prefix + " lookup table", image, new Case() {
+			@Override
+			void run(BitMask mask) throws SignatureException {
+				table.filter(image, mask, executor);
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks the SVM method.
+	 */
+	private void svm(final IcyBufferedImage image, int[] positive, int[] negative, int cs, String csName, int kernel, String kName) throws SignatureException, MaskException {
+		String prefix = "svm " + image.getWidth() + " " + positive.length + " " + csName + " " + kName;
+		final CompiledFilter all = CompiledFilter.compile(FilterParameters.svm(cs, positive, negative, kernel, 1, 1, false, false), executor);
+		measure(prefix + " all pixels", image, new Case() {
+			@Override
+			void run(BitMask mask) throws SignatureException {
+				all.filter(image, mask, executor);
+			}
+		});
+
+		final CompiledFilter unique = CompiledFilter.compile(FilterParameters.svm(cs, positive, negative, kernel, 1, 1, true, false), executor);
+		measure(prefix + " unique colors", image, new Case() {
+			@Override
+			void run(BitMask mask) throws SignatureException {
+				unique.filter(image, mask, executor);
+			}
+		});
+
+		final CompiledFilter grid = CompiledFilter.compile(FilterParameters.svm(cs, positive, negative, kernel, 1, 1, false, true), executor);
+		measure(prefix + " decision grid", image, new Case() {
+			@Override
+			void run(BitMask mask) throws SignatureException {
+				grid.filter(image, mask, executor);
+			}
+		});
+	}
+
+	/**
+	 * Runs the whole matrix.
+	 */
+	private void run(int[] sizes) throws SignatureException, MaskException {
+		if ((threads != null) && threads.isThreadAllocatedMemorySupported()) {
+			threads.setThreadAllocatedMemoryEnabled(true);
+		}
+
+		Random rd = new Random(SEED);
+		for (int size : sizes) {
+			IcyBufferedImage image = createImage(size, rd);
+			for (int nb : NB_COLORS) {
+				int[] colors = pickColors(image, nb, rd);
+				int[] negative = pickColors(image, nb, rd);
+				for (int c = 0; c < COLOR_SPACES.length; c++) {
+					knn(image, colors, COLOR_SPACES[c], COLOR_SPACES_NAMES[c], new L1ColorDistance(), "L1");
+					knn(image, colors, COLOR_SPACES[c], COLOR_SPACES_NAMES[c], new L2ColorDistance(), "L2");
+					for (int k = 0; k < KERNELS.length; k++) {
+						svm(image, colors, negative, COLOR_SPACES[c], COLOR_SPACES_NAMES[c], KERNELS[k], KERNELS_NAMES[k]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the image sizes, optional
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		int[] sizes = DEFAULT_SIZES;
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		new FilterBenchmark().run(sizes);
+	}
+}
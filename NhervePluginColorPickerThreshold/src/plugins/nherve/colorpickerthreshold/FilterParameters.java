@@ -0,0 +1,455 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.L1ColorDistance;
+import plugins.nherve.toolbox.image.feature.L2ColorDistance;
+
+/**
+ * An immutable snapshot of the filtering parameters. It is taken from the
+ * interface on the event dispatch thread, so that the filtering itself can
+ * run on any thread.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class FilterParameters {
+
+	/** The KNN method. */
+	final static int KNN = 0;
+
+	/** The SVM method. */
+	final static int SVM = 1;
+
+	/** The L1 distance name, in parameter files. */
+	private final static String L1 = "L1";
+
+	/** The L2 distance name, in parameter files. */
+	private final static String L2 = "L2";
+
+	/** The method. */
+	private final int method;
+
+	/** The color space. */
+	private final int colorSpace;
+
+	/** The packed RGB colors of the KNN method. */
+	private final int[] colors;
+
+	/** The distance. */
+	private final ColorDistance distance;
+
+	/** The threshold. */
+	private final int threshold;
+
+	/** The lookup table flag. */
+	private final boolean lookupTable;
+
+	/** The packed RGB positive colors of the SVM method. */
+	private final int[] positive;
+
+	/** The packed RGB negative colors of the SVM method. */
+	private final int[] negative;
+
+	/** The kernel. */
+	private final int kernel;
+
+	/** The C parameter. */
+	private final double c;
+
+	/** The gamma parameter. */
+	private final double gamma;
+
+	/** The unique colors flag. */
+	private final boolean uniqueColors;
+
+	/** The decision grid flag. */
+	private final boolean decisionGrid;
+
+	/**
+	 * Instantiates new filter parameters.
+	 */
+	private FilterParameters(int method, int colorSpace, int[] colors, ColorDistance distance, int threshold, boolean lookupTable, int[] positive, int[] negative, int kernel, double c, double gamma, boolean uniqueColors, boolean decisionGrid) {
+		super();
+
+		this.method = method;
+		this.colorSpace = colorSpace;
+		this.colors = colors;
+		this.distance = distance;
+		this.threshold = threshold;
+		this.lookupTable = lookupTable;
+		this.positive = positive;
+		this.negative = negative;
+		this.kernel = kernel;
+		this.c = c;
+		this.gamma = gamma;
+		this.uniqueColors = uniqueColors;
+		this.decisionGrid = decisionGrid;
+	}
+
+	/**
+	 * Creates the parameters of the KNN method.
+	 *
+	 * @param colorSpace
+	 *            the color space
+	 * @param colors
+	 *            the packed RGB colors
+	 * @param distance
+	 *            the distance
+	 * @param threshold
+	 *            the threshold
+	 * @param lookupTable
+	 *            true to filter with the RGB lookup table
+	 * @return the filter parameters
+	 */
+	static FilterParameters knn(int colorSpace, int[] colors, ColorDistance distance, int threshold, boolean lookupTable) {
+		return new FilterParameters(KNN, colorSpace, colors.clone(), distance, threshold, lookupTable, null, null, 0, 0, 0, false, false);
+	}
+
+	/**
+	 * Creates the parameters of the SVM method.
+	 *
+	 * @param colorSpace
+	 *            the color space
+	 * @param positive
+	 *            the packed RGB positive colors
+	 * @param negative
+	 *            the packed RGB negative colors
+	 * @param kernel
+	 *            the kernel
+	 * @param c
+	 *            the C parameter
+	 * @param gamma
+	 *            the gamma parameter
+	 * @param uniqueColors
+	 *            true to predict each distinct color only once
+	 * @param decisionGrid
+	 *            true to predict exactly only the colors near the boundary
+	 * @return the filter parameters
+	 */
+	static FilterParameters svm(int colorSpace, int[] positive, int[] negative, int kernel, double c, double gamma, boolean uniqueColors, boolean decisionGrid) {
+		return new FilterParameters(SVM, colorSpace, null, null, 0, false, positive.clone(), negative.clone(), kernel, c, gamma, uniqueColors, decisionGrid);
+	}
+
+	/**
+	 * Loads parameters saved with {@link #save(File)}.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the filter parameters
+	 * @throws IOException
+	 *             if the file can't be read or is not a parameter file
+	 */
+	static FilterParameters load(File file) throws IOException {
+		Properties p = new Properties();
+		InputStream is = new FileInputStream(file);
+		try {
+			p.load(is);
+		} finally {
+			is.close();
+		}
+
+		try {
+			String method = get(p, "method");
+			int colorSpace = Integer.parseInt(get(p, "colorSpace"));
+			if ("KNN".equals(method)) {
+				String d = get(p, "distance");
+				ColorDistance distance;
+				if (L1.equals(d)) {
+					distance = new L1ColorDistance();
+				} else if (L2.equals(d)) {
+					distance = new L2ColorDistance();
+				} else {
+					throw new IOException("Unknown distance " + d + " in " + file.getName());
+				}
+				return knn(colorSpace, unpack(get(p, "colors")), distance, Integer.parseInt(get(p, "threshold")), Boolean.parseBoolean(p.getProperty("lookupTable")));
+			}
+			if ("SVM".equals(method)) {
+				return svm(colorSpace, unpack(get(p, "positive")), unpack(get(p, "negative")), Integer.parseInt(get(p, "kernel")), Double.parseDouble(get(p, "c")), Double.parseDouble(get(p, "gamma")), Boolean.parseBoolean(p.getProperty("uniqueColors")), Boolean.parseBoolean(p.getProperty("decisionGrid")));
+			}
+			throw new IOException("Unknown method " + method + " in " + file.getName());
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed parameter file " + file.getName() + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Saves the parameters, as a properties file.
+	 *
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void save(File file) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("colorSpace", Integer.toString(colorSpace));
+		if (method == KNN) {
+			p.setProperty("method", "KNN");
+			p.setProperty("colors", pack(colors));
+			p.setProperty("distance", distance instanceof L1ColorDistance ? L1 : L2);
+			p.setProperty("threshold", Integer.toString(threshold));
+			p.setProperty("lookupTable", Boolean.toString(lookupTable));
+		} else {
+			p.setProperty("method", "SVM");
+			p.setProperty("positive", pack(positive));
+			p.setProperty("negative", pack(negative));
+			p.setProperty("kernel", Integer.toString(kernel));
+			p.setProperty("c", Double.toString(c));
+			p.setProperty("gamma", Double.toString(gamma));
+			p.setProperty("uniqueColors", Boolean.toString(uniqueColors));
+			p.setProperty("decisionGrid", Boolean.toString(decisionGrid));
+		}
+
+		OutputStream os = new FileOutputStream(file);
+		try {
+			p.store(os, "Color Picker Threshold parameters");
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Gets a mandatory property.
+	 */
+	private static String get(Properties p, String key) throws IOException {
+		String v = p.getProperty(key);
+		if (v == null) {
+			throw new IOException("Missing parameter " + key);
+		}
+		return v.trim();
+	}
+
+	/**
+	 * Writes packed RGB colors as comma separated hexadecimal values.
+	 */
+	private static String pack(int[] colors) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < colors.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(String.format("%06x", colors[i]));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads comma separated hexadecimal packed RGB colors.
+	 */
+	private static int[] unpack(String s) {
+		if (s.length() == 0) {
+			return new int[0];
+		}
+		String[] tokens = s.split(",");
+		int[] colors = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			colors[i] = Integer.parseInt(tokens[i].trim(), 16) & 0xFFFFFF;
+		}
+		return colors;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof FilterParameters)) {
+			return false;
+		}
+		FilterParameters o = (FilterParameters) obj;
+		if ((method != o.method) || (colorSpace != o.colorSpace)) {
+			return false;
+		}
+		if (method == KNN) {
+			return Arrays.equals(colors, o.colors) && (distance.getClass() == o.distance.getClass()) && (threshold == o.threshold) && (lookupTable == o.lookupTable);
+		}
+		return Arrays.equals(positive, o.positive) && Arrays.equals(negative, o.negative) && (kernel == o.kernel) && (Double.compare(c, o.c) == 0) && (Double.compare(gamma, o.gamma) == 0) && (uniqueColors == o.uniqueColors) && (decisionGrid == o.decisionGrid);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		int h = 31 * method + colorSpace;
+		if (method == KNN) {
+			return 31 * (31 * h + Arrays.hashCode(colors)) + threshold;
+		}
+		return 31 * (31 * h + Arrays.hashCode(positive)) + Arrays.hashCode(negative);
+	}
+
+	/**
+	 * Gets the average of the KNN colors, or of the SVM positive colors.
+	 *
+	 * @return the average color
+	 */
+	Color getAverageColor() {
+		int[] colors = (method == KNN) ? this.colors : positive;
+		int r = 0;
+		int g = 0;
+		int b = 0;
+		for (int rgb : colors) {
+			r += (rgb >>> 16) & 0xFF;
+			g += (rgb >>> 8) & 0xFF;
+			b += rgb & 0xFF;
+		}
+		r /= colors.length;
+		g /= colors.length;
+		b /= colors.length;
+
+		return new Color(r, g, b);
+	}
+
+	/**
+	 * Gets the method.
+	 *
+	 * @return the method
+	 */
+	int getMethod() {
+		return method;
+	}
+
+	/**
+	 * Gets the color space.
+	 *
+	 * @return the color space
+	 */
+	int getColorSpace() {
+		return colorSpace;
+	}
+
+	/**
+	 * Gets the colors.
+	 *
+	 * @return the packed RGB colors of the KNN method
+	 */
+	int[] getColors() {
+		return colors;
+	}
+
+	/**
+	 * Gets the distance.
+	 *
+	 * @return the distance
+	 */
+	ColorDistance getDistance() {
+		return distance;
+	}
+
+	/**
+	 * Gets the threshold.
+	 *
+	 * @return the threshold
+	 */
+	int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Checks if is lookup table.
+	 *
+	 * @return true, if the RGB lookup table is used
+	 */
+	boolean isLookupTable() {
+		return lookupTable;
+	}
+
+	/**
+	 * Gets the positive.
+	 *
+	 * @return the packed RGB positive colors
+	 */
+	int[] getPositive() {
+		return positive;
+	}
+
+	/**
+	 * Gets the negative.
+	 *
+	 * @return the packed RGB negative colors
+	 */
+	int[] getNegative() {
+		return negative;
+	}
+
+	/**
+	 * Gets the kernel.
+	 *
+	 * @return the kernel
+	 */
+	int getKernel() {
+		return kernel;
+	}
+
+	/**
+	 * Gets the c.
+	 *
+	 * @return the C parameter
+	 */
+	double getC() {
+		return c;
+	}
+
+	/**
+	 * Gets the gamma.
+	 *
+	 * @return the gamma parameter
+	 */
+	double getGamma() {
+		return gamma;
+	}
+
+	/**
+	 * Checks if is unique colors.
+	 *
+	 * @return true, if each distinct color is predicted only once
+	 */
+	boolean isUniqueColors() {
+		return uniqueColors;
+	}
+
+	/**
+	 * Checks if is decision grid.
+	 *
+	 * @return true, if only the colors near the boundary are predicted
+	 *         exactly
+	 */
+	boolean isDecisionGrid() {
+		return decisionGrid;
+	}
+}
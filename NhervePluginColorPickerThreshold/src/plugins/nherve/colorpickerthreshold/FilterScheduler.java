@@ -0,0 +1,318 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * Runs the filtering jobs of the Auto mode in the background, away from the
+ * event dispatch thread. For each key (a painter) only the latest job
+ * matters : submitting a new one cancels the previous one, which stops
+ * between two bands of rows, and a job only starts after a short quiet
+ * period so that a dragged slider doesn't start a job for every tick.
+ * <p>
+ * Several sequences share the same workers. Each key has at most one
+ * pending job and one running job. The jobs of the preferred owner, the
+ * painter of the visible sequence, start first, and the jobs of the other
+ * owners run one at a time, so that they never hold all the workers : with
+ * many sequences open, the visible one is still filtered right away.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class FilterScheduler {
+
+	/**
+	 * A filtering job.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	static abstract class Job implements BandExecutor.Cancellable {
+
+		/** The cancelled flag. */
+		private volatile boolean cancelled;
+
+		/**
+		 * Cancels the job.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see plugins.nherve.colorpickerthreshold.BandExecutor.Cancellable#
+		 * isCancelled()
+		 */
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Does the work. Implementations should give this job to the band
+		 * executor they use, see {@link BandExecutor#cancellable}.
+		 *
+		 * @throws SignatureException
+		 *             the signature exception
+		 */
+		abstract void run() throws SignatureException;
+	}
+
+	/** The quiet period before a job starts, in milliseconds. */
+	private final static long DEBOUNCE_DELAY = 40;
+
+	/** The number of workers, one of them at most runs the jobs of the other owners. */
+	private final static int NB_WORKERS = 2;
+
+	/** The workers. */
+	private final Thread[] workers;
+
+	/** The latest job of each key, pending or running. */
+	private final Map<Object, Job> latest;
+
+	/** The jobs not started yet, by key, in submission order. */
+	private final LinkedHashMap<Object, Job> pending;
+
+	/** The owner of the pending jobs, by key. */
+	private final Map<Object, Object> owners;
+
+	/** The keys of the running jobs. */
+	private final Set<Object> running;
+
+	/** The owner whose jobs start first, may be null. */
+	private Object preferred;
+
+	/** The number of workers running a job of another owner. */
+	private int others;
+
+	/** True once stopped. */
+	private boolean stopped;
+
+	/**
+	 * Instantiates a new filter scheduler.
+	 */
+	FilterScheduler() {
+		super();
+
+		latest = new HashMap<Object, Job>();
+		pending = new LinkedHashMap<Object, Job>();
+		owners = new HashMap<Object, Object>();
+		running = new HashSet<Object>();
+
+		workers = new Thread[NB_WORKERS];
+		for (int i = 0; i < NB_WORKERS; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "ColorPickerThreshold-scheduler-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Sets the owner whose jobs start before the other ones.
+	 *
+	 * @param owner
+	 *            the owner, null for none
+	 */
+	void setPreferred(Object owner) {
+		synchronized (latest) {
+			preferred = owner;
+			latest.notifyAll();
+		}
+	}
+
+	/**
+	 * Submits a job, cancelling the previous job of the same key.
+	 *
+	 * @param key
+	 *            the key, also the owner of the job
+	 * @param job
+	 *            the job
+	 */
+	void submit(Object key, Job job) {
+		submit(key, key, job);
+	}
+
+	/**
+	 * Submits a job, cancelling the previous job of the same key.
+	 *
+	 * @param key
+	 *            the key
+	 * @param owner
+	 *            the owner of the job, see {@link #setPreferred(Object)}
+	 * @param job
+	 *            the job
+	 */
+	void submit(Object key, Object owner, Job job) {
+		synchronized (latest) {
+			if (stopped) {
+				return;
+			}
+			Job previous = latest.put(key, job);
+			if (previous != null) {
+				previous.cancel();
+			}
+			pending.remove(key);
+			pending.put(key, job);
+			owners.put(key, owner);
+			latest.notifyAll();
+		}
+	}
+
+	/**
+	 * Gets the key of the next job to start, null if none can start now.
+	 * Must be called while holding the lock.
+	 */
+	private Object next() {
+		Object other = null;
+		for (Map.Entry<Object, Job> e : pending.entrySet()) {
+			Object key = e.getKey();
+			if (running.contains(key)) {
+				continue;
+			}
+			if ((preferred != null) && (owners.get(key) == preferred)) {
+				return key;
+			}
+			if ((other == null) && (others == 0)) {
+				other = key;
+			}
+		}
+		return other;
+	}
+
+	/**
+	 * The loop of a worker.
+	 */
+	private void work() {
+		while (true) {
+			Object key = null;
+			Job job;
+			boolean other;
+			synchronized (latest) {
+				while (!stopped && ((key = next()) == null)) {
+					try {
+						latest.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				job = pending.remove(key);
+				Object owner = owners.remove(key);
+				other = (preferred == null) || (owner != preferred);
+				running.add(key);
+				if (other) {
+					others++;
+				}
+			}
+
+			try {
+				run(job);
+			} finally {
+				synchronized (latest) {
+					running.remove(key);
+					if (other) {
+						others--;
+					}
+					if (latest.get(key) == job) {
+						latest.remove(key);
+					}
+					latest.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a job after the quiet period, unless it is cancelled meanwhile.
+	 */
+	private void run(Job job) {
+		if (job.isCancelled()) {
+			return;
+		}
+		try {
+			Thread.sleep(DEBOUNCE_DELAY);
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			if (!job.isCancelled()) {
+				job.run();
+			}
+		} catch (CancellationException e) {
+			// a newer job has been submitted
+		} catch (RejectedExecutionException e) {
+			// the band executor has been replaced
+		} catch (SignatureException e) {
+			Algorithm.err(e);
+		} catch (RuntimeException e) {
+			Algorithm.err(e);
+		}
+	}
+
+	/**
+	 * Cancels the job of a key, if any.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	void cancel(Object key) {
+		synchronized (latest) {
+			Job job = latest.remove(key);
+			if (job != null) {
+				job.cancel();
+			}
+			pending.remove(key);
+			owners.remove(key);
+		}
+	}
+
+	/**
+	 * Cancels all the jobs and stops the workers.
+	 */
+	void shutdown() {
+		synchronized (latest) {
+			for (Job job : latest.values()) {
+				job.cancel();
+			}
+			latest.clear();
+			pending.clear();
+			owners.clear();
+			stopped = true;
+			latest.notifyAll();
+		}
+	}
+}
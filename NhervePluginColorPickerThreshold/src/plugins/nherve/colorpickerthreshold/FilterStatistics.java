@@ -0,0 +1,424 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.libsvm.svm;
+
+/**
+ * Statistics of the filter runs, in total and broken down by method, color
+ * space and kernel.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class FilterStatistics implements FilterStatisticsMBean {
+
+	/**
+	 * The measures of one filter run. The work done on the calling thread is
+	 * measured between the start and the end of the run, the bands processed
+	 * by the threads of a pool are added by the band executor.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	static class Run {
+
+		/** The key. */
+		private final String key;
+
+		/** The thread of the run. */
+		private final long thread;
+
+		/** The start time. */
+		private final long start;
+
+		/** The CPU time of the calling thread at start. */
+		private final long startCpu;
+
+		/** The allocated bytes of the calling thread at start. */
+		private final long startAllocated;
+
+		/** The CPU time of the other threads. */
+		private final AtomicLong bandsCpu;
+
+		/** The bytes allocated by the other threads. */
+		private final AtomicLong bandsAllocated;
+
+		/** The wall time. */
+		private long wall;
+
+		/** The CPU time. */
+		private long cpu;
+
+		/** The training time. */
+		private long training;
+
+		/** The pixels. */
+		private long pixels;
+
+		/** The kept pixels. */
+		private long kept;
+
+		/** The allocated bytes. */
+		private long allocated;
+
+		/**
+		 * Starts a new run.
+		 */
+		private Run(String key) {
+			super();
+
+			this.key = key;
+			thread = Thread.currentThread().getId();
+			bandsCpu = new AtomicLong(0);
+			bandsAllocated = new AtomicLong(0);
+			training = 0;
+			startCpu = currentThreadCpuTime();
+			startAllocated = currentThreadAllocatedBytes();
+			start = System.nanoTime();
+		}
+
+		/**
+		 * Adds the measures of a band processed by another thread.
+		 *
+		 * @param cpu
+		 *            the CPU time in nanoseconds
+		 * @param allocated
+		 *            the allocated bytes
+		 */
+		void addBand(long cpu, long allocated) {
+			if (Thread.currentThread().getId() != thread) {
+				bandsCpu.addAndGet(cpu);
+				bandsAllocated.addAndGet(allocated);
+			}
+		}
+
+		/**
+		 * Adds training time.
+		 *
+		 * @param nanos
+		 *            the training time in nanoseconds
+		 */
+		void addTraining(long nanos) {
+			training += nanos;
+		}
+
+		/**
+		 * Ends the run.
+		 *
+		 * @param pixels
+		 *            the number of filtered pixels
+		 * @param kept
+		 *            the number of kept pixels
+		 */
+		void end(long pixels, long kept) {
+			wall = System.nanoTime() - start;
+			cpu = currentThreadCpuTime() - startCpu + bandsCpu.get();
+			allocated = currentThreadAllocatedBytes() - startAllocated + bandsAllocated.get();
+			this.pixels = pixels;
+			this.kept = kept;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return key + " : " + (wall / 1000000) + " ms (CPU " + (cpu / 1000000) + " ms, training " + (training / 1000000) + " ms), " + kept + " / " + pixels + " pixels kept, " + (allocated / 1024) + " KB allocated";
+		}
+	}
+
+	/**
+	 * The totals of several runs.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Totals {
+
+		/** The runs. */
+		private long runs;
+
+		/** The wall time. */
+		private long wall;
+
+		/** The CPU time. */
+		private long cpu;
+
+		/** The training time. */
+		private long training;
+
+		/** The pixels. */
+		private long pixels;
+
+		/** The kept pixels. */
+		private long kept;
+
+		/** The allocated bytes. */
+		private long allocated;
+
+		/**
+		 * Adds a run.
+		 */
+		void add(Run r) {
+			runs++;
+			wall += r.wall;
+			cpu += r.cpu;
+			training += r.training;
+			pixels += r.pixels;
+			kept += r.kept;
+			allocated += r.allocated;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return runs + " runs, " + (wall / 1000000) + " ms (CPU " + (cpu / 1000000) + " ms, training " + (training / 1000000) + " ms), " + kept + " / " + pixels + " pixels kept, " + (allocated / 1024) + " KB allocated";
+		}
+	}
+
+	/** The JMX name. */
+	final static String OBJECT_NAME = "plugins.nherve.colorpickerthreshold:type=FilterStatistics";
+
+	/** The color spaces names. */
+	private final static String[] COLOR_SPACES_NAMES = { "RGB", "HSV", "H1H2H3" };
+
+	/** The thread bean. */
+	private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/** The thread bean, with the allocations, null if not available. */
+	private final static com.sun.management.ThreadMXBean ALLOCATIONS = (THREADS instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) THREADS : null;
+
+	/** The totals of all the runs. */
+	private Totals all;
+
+	/** The totals by key. */
+	private final Map<String, Totals> byKey;
+
+	/** The last run. */
+	private Run last;
+
+	/**
+	 * Instantiates new filter statistics.
+	 */
+	FilterStatistics() {
+		super();
+
+		byKey = new TreeMap<String, Totals>();
+		reset();
+	}
+
+	/**
+	 * Gets the CPU time of the current thread.
+	 *
+	 * @return the CPU time in nanoseconds, 0 if not supported
+	 */
+	static long currentThreadCpuTime() {
+		if (THREADS.isCurrentThreadCpuTimeSupported()) {
+			return THREADS.getCurrentThreadCpuTime();
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread.
+	 *
+	 * @return the allocated bytes, 0 if not supported
+	 */
+	static long currentThreadAllocatedBytes() {
+		if ((ALLOCATIONS != null) && ALLOCATIONS.isThreadAllocatedMemorySupported()) {
+			return Math.max(0, ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()));
+		}
+		return 0;
+	}
+
+	/**
+	 * Starts a run.
+	 *
+	 * @param parameters
+	 *            the parameters
+	 * @return the run
+	 */
+	Run start(FilterParameters parameters) {
+		String cs = parameters.getColorSpace() < COLOR_SPACES_NAMES.length ? COLOR_SPACES_NAMES[parameters.getColorSpace()] : Integer.toString(parameters.getColorSpace());
+		String key;
+		if (parameters.getMethod() == FilterParameters.KNN) {
+			key = "KNN " + cs;
+		} else {
+			key = "SVM " + cs + " " + svm.kernel_type_table[parameters.getKernel()];
+		}
+		return new Run(key);
+	}
+
+	/**
+	 * Records an ended run.
+	 *
+	 * @param run
+	 *            the run
+	 */
+	synchronized void record(Run run) {
+		all.add(run);
+		Totals t = byKey.get(run.key);
+		if (t == null) {
+			t = new Totals();
+			byKey.put(run.key, t);
+		}
+		t.add(run);
+		last = run;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getRuns()
+	 */
+	@Override
+	public synchronized long getRuns() {
+		return all.runs;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getWallTimeMillis
+	 * ()
+	 */
+	@Override
+	public synchronized long getWallTimeMillis() {
+		return all.wall / 1000000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getCpuTimeMillis
+	 * ()
+	 */
+	@Override
+	public synchronized long getCpuTimeMillis() {
+		return all.cpu / 1000000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#
+	 * getTrainingTimeMillis()
+	 */
+	@Override
+	public synchronized long getTrainingTimeMillis() {
+		return all.training / 1000000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#
+	 * getPredictionTimeMillis()
+	 */
+	@Override
+	public synchronized long getPredictionTimeMillis() {
+		return (all.wall - all.training) / 1000000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getPixels()
+	 */
+	@Override
+	public synchronized long getPixels() {
+		return all.pixels;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getKeptPixels()
+	 */
+	@Override
+	public synchronized long getKeptPixels() {
+		return all.kept;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getAllocatedBytes
+	 * ()
+	 */
+	@Override
+	public synchronized long getAllocatedBytes() {
+		return all.allocated;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getBreakdown()
+	 */
+	@Override
+	public synchronized String[] getBreakdown() {
+		String[] lines = new String[byKey.size()];
+		int i = 0;
+		for (Map.Entry<String, Totals> e : byKey.entrySet()) {
+			lines[i++] = e.getKey() + " : " + e.getValue();
+		}
+		return lines;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#getLastRun()
+	 */
+	@Override
+	public synchronized String getLastRun() {
+		return last != null ? last.toString() : "";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see plugins.nherve.colorpickerthreshold.FilterStatisticsMBean#reset()
+	 */
+	@Override
+	public synchronized void reset() {
+		all = new Totals();
+		byKey.clear();
+		last = null;
+	}
+}
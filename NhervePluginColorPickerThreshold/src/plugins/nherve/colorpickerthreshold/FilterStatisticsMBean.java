@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+/**
+ * The JMX view of the filtering statistics.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public interface FilterStatisticsMBean {
+
+	/**
+	 * Gets the number of filter runs.
+	 *
+	 * @return the runs
+	 */
+	long getRuns();
+
+	/**
+	 * Gets the total wall time.
+	 *
+	 * @return the wall time in milliseconds
+	 */
+	long getWallTimeMillis();
+
+	/**
+	 * Gets the total CPU time, of all the threads.
+	 *
+	 * @return the CPU time in milliseconds
+	 */
+	long getCpuTimeMillis();
+
+	/**
+	 * Gets the total SVM training time.
+	 *
+	 * @return the training time in milliseconds
+	 */
+	long getTrainingTimeMillis();
+
+	/**
+	 * Gets the total prediction time, the wall time without the training.
+	 *
+	 * @return the prediction time in milliseconds
+	 */
+	long getPredictionTimeMillis();
+
+	/**
+	 * Gets the number of processed pixels.
+	 *
+	 * @return the pixels
+	 */
+	long getPixels();
+
+	/**
+	 * Gets the number of kept pixels.
+	 *
+	 * @return the kept pixels
+	 */
+	long getKeptPixels();
+
+	/**
+	 * Gets the number of allocated bytes, of all the threads.
+	 *
+	 * @return the allocated bytes
+	 */
+	long getAllocatedBytes();
+
+	/**
+	 * Gets the totals by method, color space and kernel.
+	 *
+	 * @return one line for each
+	 */
+	String[] getBreakdown();
+
+	/**
+	 * Gets the last run.
+	 *
+	 * @return the last run
+	 */
+	String getLastRun();
+
+	/**
+	 * Resets all the statistics.
+	 */
+	void reset();
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+import icy.type.collection.array.Array1DUtil;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * Reads the red, green and blue channels of an image that is not an 8 bits
+ * one, a row at a time, at their native scale : the values are neither
+ * rounded nor clamped to [0, 255]. The rows are read in buffers reused from
+ * one row to the next, so nothing is allocated for each pixel.
+ *
+ * A reader is not thread safe, each thread needs its own instance.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ImageRows {
+
+	/** The image. */
+	private final IcyBufferedImage image;
+
+	/** The width. */
+	private final int width;
+
+	/** True if the data type of the image is signed. */
+	private final boolean signed;
+
+	/** The red values of the current row. */
+	private final double[] red;
+
+	/** The green values of the current row. */
+	private final double[] green;
+
+	/** The blue values of the current row. */
+	private final double[] blue;
+
+	/** The current row, -1 before the first read. */
+	private int y;
+
+	/**
+	 * Instantiates a new reader.
+	 * 
+	 * @param image
+	 *            the image, of at least three channels
+	 */
+	ImageRows(IcyBufferedImage image) {
+		super();
+
+		this.image = image;
+		this.width = image.getWidth();
+		this.signed = image.isSignedDataType();
+		this.red = new double[width];
+		this.green = new double[width];
+		this.blue = new double[width];
+		this.y = -1;
+	}
+
+	/**
+	 * Reads a row.
+	 * 
+	 * @param y
+	 *            the row
+	 */
+	void read(int y) {
+		Array1DUtil.arrayToDoubleArray(image.getDataXY(0), y * width, red, 0, width, signed);
+		Array1DUtil.arrayToDoubleArray(image.getDataXY(1), y * width, green, 0, width, signed);
+		Array1DUtil.arrayToDoubleArray(image.getDataXY(2), y * width, blue, 0, width, signed);
+		this.y = y;
+	}
+
+	/**
+	 * Gets the red value of a pixel of the current row.
+	 * 
+	 * @param x
+	 *            the x
+	 * @return the value
+	 */
+	double getRed(int x) {
+		return red[x];
+	}
+
+	/**
+	 * Gets the green value of a pixel of the current row.
+	 * 
+	 * @param x
+	 *            the x
+	 * @return the value
+	 */
+	double getGreen(int x) {
+		return green[x];
+	}
+
+	/**
+	 * Gets the blue value of a pixel of the current row.
+	 * 
+	 * @param x
+	 *            the x
+	 * @return the value
+	 */
+	double getBlue(int x) {
+		return blue[x];
+	}
+
+	/**
+	 * Gets the components of a pixel of the current row as the toolbox
+	 * computes them from the image, allocating them.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param colorSpace
+	 *            the color space
+	 * @param unitScale
+	 *            true for components in [0, 1], false for [0, 255]
+	 * @return the components
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	double[] toolboxComponents(int x, int colorSpace, boolean unitScale) throws SignatureException {
+		if (unitScale) {
+			return ColorSpaceTools.getColorComponentsD_0_1(image, colorSpace, x, y);
+		}
+		return ColorSpaceTools.getColorComponentsD_0_255(image, colorSpace, x, y);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * An 8 bits RGB image as the index of the color of each pixel among the
+ * distinct colors of the image, 4 bytes per pixel. The components of the
+ * distinct colors are converted once per color space and scale, and kept,
+ * so that the {@link ConvertedPlanes} of all the color spaces and scales
+ * share the same indexes and don't replace each other.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class IndexedImage {
+
+	/** The part of the maximum heap size an indexed image may use. */
+	private final static int HEAP_FRACTION = 8;
+
+	/** The bytes per distinct color : dictionary and a couple of palettes. */
+	private final static int BYTES_PER_COLOR = 96;
+
+	/** The image. */
+	private final IcyBufferedImage image;
+
+	/** The distinct colors. */
+	private final ColorDictionary dictionary;
+
+	/** The index of the color of each pixel. */
+	private final int[] indexes;
+
+	/** The converted components of the distinct colors, by color space and scale. */
+	private final Map<Integer, double[]> palettes;
+
+	/**
+	 * Instantiates a new indexed image.
+	 */
+	private IndexedImage(IcyBufferedImage image, ColorDictionary dictionary, int[] indexes) {
+		super();
+
+		this.image = image;
+		this.dictionary = dictionary;
+		this.indexes = indexes;
+
+		palettes = new HashMap<Integer, double[]>();
+	}
+
+	/**
+	 * Gets the memory an indexed image may use.
+	 * 
+	 * @return the budget, in bytes
+	 */
+	private static long budget() {
+		return Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+	}
+
+	/**
+	 * Checks if an image can be indexed.
+	 * 
+	 * @param image
+	 *            the image
+	 * @return true, for the 8 bits RGB images whose indexes fit in the
+	 *         budget, a fraction of the maximum heap size
+	 */
+	static boolean isIndexable(IcyBufferedImage image) {
+		return (4L * image.getWidth() * image.getHeight() <= budget()) && (ColorPlanes.of(image) != null);
+	}
+
+	/**
+	 * Indexes an image.
+	 * 
+	 * @param image
+	 *            the image, see {@link #isIndexable(IcyBufferedImage)}
+	 * @return the indexed image, null if it has too many distinct colors for
+	 *         the budget
+	 */
+	static IndexedImage index(IcyBufferedImage image) {
+		ColorPlanes planes = ColorPlanes.of(image);
+		int nb = planes.getWidth() * planes.getHeight();
+		int[] indexes = new int[nb];
+		ColorDictionary dict = new ColorDictionary();
+		int last = -1;
+		int index = -1;
+		for (int idx = 0; idx < nb; idx++) {
+			int rgb = planes.rgb(idx);
+			if (rgb != last) {
+				index = dict.add(rgb);
+				last = rgb;
+			}
+			indexes[idx] = index;
+		}
+
+		if (4L * nb + (long) BYTES_PER_COLOR * dict.size() > budget()) {
+			return null;
+		}
+		return new IndexedImage(image, dict, indexes);
+	}
+
+	/**
+	 * Checks if this is the index of an image.
+	 * 
+	 * @param image
+	 *            the image
+	 * @return true, if it is
+	 */
+	boolean isIndexOf(IcyBufferedImage image) {
+		return this.image == image;
+	}
+
+	/**
+	 * Gets the components of the distinct colors in a color space, converting
+	 * them the first time.
+	 * 
+	 * @param colorSpace
+	 *            the color space
+	 * @param unitScale
+	 *            true for components in [0, 1], false for [0, 255]
+	 * @param executor
+	 *            the executor
+	 * @return the three components of each distinct color, by index
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	synchronized double[] getPalette(final int colorSpace, final boolean unitScale, BandExecutor executor) throws SignatureException {
+		Integer key = colorSpace * 2 + (unitScale ? 1 : 0);
+		double[] palette = palettes.get(key);
+		if (palette == null) {
+			final double[] converted = new double[3 * dictionary.size()];
+			executor.execute(dictionary.size(), new BandExecutor.BandTask() {
+				@Override
+				void process(int first, int last) throws SignatureException {
+					ColorConverter converter = new ColorConverter(colorSpace, unitScale);
+					double[] cc = new double[3];
+					for (int i = first; i < last; i++) {
+						converter.convert(dictionary.getColor(i), cc);
+						System.arraycopy(cc, 0, converted, 3 * i, 3);
+					}
+				}
+			});
+			palette = converted;
+			palettes.put(key, palette);
+		}
+		return palette;
+	}
+
+	/**
+	 * Gets the image.
+	 * 
+	 * @return the image
+	 */
+	IcyBufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * Gets the indexes.
+	 * 
+	 * @return the index of the color of each pixel, y * width + x
+	 */
+	int[] getIndexes() {
+		return indexes;
+	}
+}
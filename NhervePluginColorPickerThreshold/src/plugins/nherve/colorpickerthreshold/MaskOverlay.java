@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rendered image of a mask, kept between two repaints. The mask is
+ * rendered at full resolution and at coarser levels, each one half the size
+ * of the previous one, built on the first paint that needs them. A repaint
+ * only draws the part of the level matching the zoom that is inside the
+ * clip, so that its cost depends on the size of the screen and not on the
+ * one of the image.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class MaskOverlay {
+
+	/** The mask. */
+	private final BitMask mask;
+
+	/** The color the images have been rendered with. */
+	private final Color color;
+
+	/** The masks of the levels, level k has a step of 2^k. */
+	private final List<BitMask> levels;
+
+	/** The images of the levels, null until painted. */
+	private final List<BufferedImage> views;
+
+	/**
+	 * Instantiates a new overlay. Nothing is rendered yet.
+	 * 
+	 * @param mask
+	 *            the mask
+	 */
+	MaskOverlay(BitMask mask) {
+		super();
+
+		this.mask = mask;
+		this.color = mask.getColor();
+		levels = new ArrayList<BitMask>();
+		levels.add(mask);
+		views = new ArrayList<BufferedImage>();
+		views.add(null);
+	}
+
+	/**
+	 * Checks if the overlay has been rendered for a mask.
+	 * 
+	 * @param mask
+	 *            the mask
+	 * @return true, if it is the same mask, with the same color
+	 */
+	boolean isBuiltFor(BitMask mask) {
+		return (this.mask == mask) && color.equals(mask.getColor());
+	}
+
+	/**
+	 * Gets the image of a level, rendering it and the levels before it if
+	 * needed.
+	 */
+	private BufferedImage getView(int level) {
+		while (levels.size() <= level) {
+			levels.add(levels.get(levels.size() - 1).half());
+			views.add(null);
+		}
+		BufferedImage view = views.get(level);
+		if (view == null) {
+			view = levels.get(level).toImage();
+			views.set(level, view);
+		}
+		return view;
+	}
+
+	/**
+	 * Paints the part of the mask inside an area.
+	 * 
+	 * @param g
+	 *            the graphics, in image coordinates
+	 * @param area
+	 *            the area, in image coordinates
+	 * @param step
+	 *            the number of image pixels per rendered pixel wanted, a
+	 *            power of two, see {@link TiledMask#getStep(double)}
+	 */
+	synchronized void paint(Graphics2D g, Rectangle area, int step) {
+		int w = mask.getWidth();
+		int h = mask.getHeight();
+		int level = Integer.numberOfTrailingZeros(step);
+		while ((level > 0) && (((w >> level) == 0) || ((h >> level) == 0))) {
+			level--;
+		}
+		step = 1 << level;
+
+		Rectangle r = area.intersection(new Rectangle(0, 0, w, h));
+		if (r.isEmpty()) {
+			return;
+		}
+		int sx1 = r.x / step;
+		int sy1 = r.y / step;
+		int sx2 = (r.x + r.width + step - 1) / step;
+		int sy2 = (r.y + r.height + step - 1) / step;
+		g.drawImage(getView(level), sx1 * step, sy1 * step, Math.min(w, sx2 * step), Math.min(h, sy2 * step), sx1, sy1, sx2, sy2, null);
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+/**
+ * Where the filters write the pixels they keep, 64 pixels at a time. Each
+ * row is written by a single thread, from its first word to its last one.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+interface MaskWriter {
+
+	/**
+	 * Sets the 64 pixels of a word at once.
+	 * 
+	 * @param y
+	 *            the row
+	 * @param word
+	 *            the index of the word in the row, x / BitMask.WORD_SIZE
+	 * @param bits
+	 *            the bits, see {@link BitMask#bit(int)}
+	 */
+	void setWord(int y, int word, long bits);
+}
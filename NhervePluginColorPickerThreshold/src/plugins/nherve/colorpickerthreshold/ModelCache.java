@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the trained SVM models, keyed by the
+ * training colors, the color space, the kernel, C and gamma. Going back to a
+ * configuration already seen skips the training. The cache is bounded both
+ * in number of models and in estimated memory.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ModelCache {
+
+	/**
+	 * The key of a model.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Key {
+
+		/** The color space. */
+		private final int colorSpace;
+
+		/** The positive colors. */
+		private final int[] positive;
+
+		/** The negative colors. */
+		private final int[] negative;
+
+		/** The kernel. */
+		private final int kernel;
+
+		/** The C parameter. */
+		private final double c;
+
+		/** The gamma parameter. */
+		private final double gamma;
+
+		/** The hash code. */
+		private final int hash;
+
+		/**
+		 * Instantiates a new key.
+		 */
+		Key(FilterParameters parameters) {
+			super();
+
+			colorSpace = parameters.getColorSpace();
+			positive = parameters.getPositive();
+			negative = parameters.getNegative();
+			kernel = parameters.getKernel();
+			c = parameters.getC();
+			gamma = parameters.getGamma();
+
+			int h = colorSpace;
+			h = 31 * h + Arrays.hashCode(positive);
+			h = 31 * h + Arrays.hashCode(negative);
+			h = 31 * h + kernel;
+			long bits = Double.doubleToLongBits(c);
+			h = 31 * h + (int) (bits ^ (bits >>> 32));
+			bits = Double.doubleToLongBits(gamma);
+			h = 31 * h + (int) (bits ^ (bits >>> 32));
+			hash = h;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (hash == other.hash) && (colorSpace == other.colorSpace) && (kernel == other.kernel) && (Double.doubleToLongBits(c) == Double.doubleToLongBits(other.c)) && (Double.doubleToLongBits(gamma) == Double.doubleToLongBits(other.gamma)) && Arrays.equals(positive, other.positive) && Arrays.equals(negative, other.negative);
+		}
+	}
+
+	/**
+	 * A model and the memory accounted for it.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Entry {
+
+		/** The model. */
+		private final ColorSVM svm;
+
+		/** The estimated memory of the model, as added to the total. */
+		private long size;
+
+		/**
+		 * Instantiates a new entry.
+		 */
+		Entry(ColorSVM svm, long size) {
+			super();
+
+			this.svm = svm;
+			this.size = size;
+		}
+	}
+
+	/** The default maximum number of models. */
+	private final static int DEFAULT_MAX_ENTRIES = 32;
+
+	/** The default maximum estimated memory, in bytes. */
+	private final static long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+	/** The maximum number of models. */
+	private final int maxEntries;
+
+	/** The maximum estimated memory. */
+	private final long maxBytes;
+
+	/** The models, from the least to the most recently used. */
+	private final LinkedHashMap<Key, Entry> models;
+
+	/** The estimated memory of the models. */
+	private long bytes;
+
+	/**
+	 * Instantiates a new model cache with the default bounds.
+	 */
+	ModelCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Instantiates a new model cache.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of models
+	 * @param maxBytes
+	 *            the maximum estimated memory, in bytes
+	 */
+	ModelCache(int maxEntries, long maxBytes) {
+		super();
+
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		models = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		bytes = 0;
+	}
+
+	/**
+	 * Gets the model trained for these parameters.
+	 *
+	 * @param parameters
+	 *            the SVM parameters
+	 * @return the model, or null if not in the cache
+	 */
+	synchronized ColorSVM get(FilterParameters parameters) {
+		Entry e = models.get(new Key(parameters));
+		return (e != null) ? e.svm : null;
+	}
+
+	/**
+	 * Adds a model, evicting the least recently used ones if needed.
+	 *
+	 * @param parameters
+	 *            the SVM parameters
+	 * @param svm
+	 *            the model trained for them
+	 */
+	synchronized void put(FilterParameters parameters, ColorSVM svm) {
+		long size = svm.getMemorySize();
+		if (size > maxBytes) {
+			return;
+		}
+
+		Entry previous = models.put(new Key(parameters), new Entry(svm, size));
+		if (previous != null) {
+			bytes -= previous.size;
+		}
+		bytes += size;
+
+		evict();
+	}
+
+	/**
+	 * Accounts for the decision grid built on a model already in the cache,
+	 * evicting the least recently used models if needed.
+	 *
+	 * @param parameters
+	 *            the SVM parameters
+	 * @param svm
+	 *            the model, with its grid
+	 */
+	synchronized void gridBuilt(FilterParameters parameters, ColorSVM svm) {
+		Key key = new Key(parameters);
+		Entry e = models.get(key);
+		if ((e == null) || (e.svm != svm)) {
+			return;
+		}
+
+		long size = svm.getMemorySize();
+		bytes += size - e.size;
+		e.size = size;
+		if (size > maxBytes) {
+			models.remove(key);
+			bytes -= size;
+		}
+
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used models until the cache is within its
+	 * bounds.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> it = models.entrySet().iterator();
+		while (((models.size() > maxEntries) || (bytes > maxBytes)) && it.hasNext()) {
+			bytes -= it.next().getValue().size;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes all the models.
+	 */
+	synchronized void clear() {
+		models.clear();
+		bytes = 0;
+	}
+}
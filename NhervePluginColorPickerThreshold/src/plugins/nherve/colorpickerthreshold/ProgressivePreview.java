@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.awt.Color;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * A coarse version of a mask, for the progressive display of the Auto mode.
+ * Only one pixel every step pixels, in both directions, is classified, by
+ * the same compiled filter as the full resolution pass, and its result is
+ * copied to the whole step x step block it starts. The sampled pixels are
+ * exactly those of the final mask, only their neighbours are guessed.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class ProgressivePreview {
+
+	/** The steps of the successive previews, before the full resolution. */
+	final static int[] STEPS = { 8, 4, 2 };
+
+	/** The smallest number of pixels for which previews are worth it. */
+	final static int MIN_PIXELS = 512 * 512;
+
+	/** The step. */
+	private final int step;
+
+	/** The width of the full image. */
+	private final int width;
+
+	/** The height of the full image. */
+	private final int height;
+
+	/** The sampled pixels. */
+	private final IcyBufferedImage sample;
+
+	/** The mask of the sampled pixels. */
+	private final BitMask sampleMask;
+
+	/**
+	 * Samples an image.
+	 * 
+	 * @param planes
+	 *            the planes of the full image
+	 * @param step
+	 *            the step
+	 */
+	ProgressivePreview(ColorPlanes planes, int step) {
+		super();
+
+		this.step = step;
+		this.width = planes.getWidth();
+		this.height = planes.getHeight();
+
+		sample = planes.extract(0, 0, width, height, step);
+		sampleMask = new BitMask(sample.getWidth(), sample.getHeight());
+	}
+
+	/**
+	 * Classifies the sampled pixels.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void filter(CompiledFilter filter, BandExecutor executor) throws SignatureException {
+		filter.filter(sample, sampleMask, executor);
+	}
+
+	/**
+	 * Gets the average color of the kept sampled pixels.
+	 * 
+	 * @return the average color, black if no pixel is kept
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	Color getAverageColor() throws SignatureException {
+		return sampleMask.getAverageColor(sample);
+	}
+
+	/**
+	 * Copies the result of each sampled pixel to its block of a full
+	 * resolution mask.
+	 * 
+	 * @param mask
+	 *            the full resolution mask to fill
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void expand(final BitMask mask, BandExecutor executor) throws SignatureException {
+		executor.execute(height, new BandExecutor.BandTask() {
+			@Override
+			void process(int firstRow, int lastRow) {
+				for (int y = firstRow; y < lastRow; y++) {
+					for (int x = 0; x < width; x += step) {
+						if (sampleMask.get(x / step, y / step)) {
+							mask.setRange(y, x, Math.min(width, x + step));
+						}
+					}
+				}
+			}
+		});
+	}
+}
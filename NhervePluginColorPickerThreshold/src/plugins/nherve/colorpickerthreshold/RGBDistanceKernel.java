@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.L1ColorDistance;
+import plugins.nherve.toolbox.image.feature.L2ColorDistance;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * The minimum distance of the pixels of 8 bits RGB images to a few colors,
+ * in integers. The L1 distance is a sum of integers and the L2 distance is
+ * compared through its square, the square root only being taken once per
+ * pixel for the minimum, so the results are exactly those of the double
+ * distances. The inner loops run over the pixels of a row, for one color at
+ * a time, with no call and no branch, the shape that the JIT compiles to
+ * SIMD instructions.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class RGBDistanceKernel {
+
+	/**
+	 * The largest number of colors for which the kernel is used. The cost
+	 * grows with the number of colors, the ColorIndex takes over beyond.
+	 */
+	final static int MAX_COLORS = 64;
+
+	/** The red components of the colors. */
+	private final int[] red;
+
+	/** The green components of the colors. */
+	private final int[] green;
+
+	/** The blue components of the colors. */
+	private final int[] blue;
+
+	/** True for the L1 distance, false for the L2 one. */
+	private final boolean l1;
+
+	/**
+	 * Instantiates a new kernel.
+	 * 
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param distance
+	 *            the distance, see {@link #accepts}
+	 */
+	RGBDistanceKernel(int[] colors, ColorDistance distance) {
+		super();
+
+		red = new int[colors.length];
+		green = new int[colors.length];
+		blue = new int[colors.length];
+		for (int k = 0; k < colors.length; k++) {
+			red[k] = RGBLookupTable.red(colors[k]);
+			green[k] = RGBLookupTable.green(colors[k]);
+			blue[k] = RGBLookupTable.blue(colors[k]);
+		}
+		l1 = distance instanceof L1ColorDistance;
+	}
+
+	/**
+	 * Checks if the kernel computes these distances.
+	 * 
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @param nbColors
+	 *            the number of colors
+	 * @return true, for the L1 and L2 distances in RGB, with at most
+	 *         MAX_COLORS colors
+	 */
+	static boolean accepts(int colorSpace, ColorDistance distance, int nbColors) {
+		return (colorSpace == ColorSpaceTools.RGB) && ((distance instanceof L1ColorDistance) || (distance instanceof L2ColorDistance)) && (nbColors <= MAX_COLORS);
+	}
+
+	/**
+	 * Gets the minimum distance of the pixels of a row, rounded down.
+	 * 
+	 * @param planes
+	 *            the planes of the image
+	 * @param offset
+	 *            the index of the first pixel of the row
+	 * @param r
+	 *            a buffer of the width of the image
+	 * @param g
+	 *            a buffer of the width of the image
+	 * @param b
+	 *            a buffer of the width of the image
+	 * @param best
+	 *            the result, floor(minimum distance) for each pixel
+	 */
+	void floorDistances(ColorPlanes planes, int offset, int[] r, int[] g, int[] b, int[] best) {
+		int w = planes.getWidth();
+		byte[] pr = planes.getRed();
+		byte[] pg = planes.getGreen();
+		byte[] pb = planes.getBlue();
+		for (int i = 0; i < w; i++) {
+			r[i] = pr[offset + i] & 0xFF;
+			g[i] = pg[offset + i] & 0xFF;
+			b[i] = pb[offset + i] & 0xFF;
+			best[i] = Integer.MAX_VALUE;
+		}
+
+		for (int k = 0; k < red.length; k++) {
+			int rk = red[k];
+			int gk = green[k];
+			int bk = blue[k];
+			if (l1) {
+				for (int i = 0; i < w; i++) {
+					best[i] = Math.min(best[i], Math.abs(r[i] - rk) + Math.abs(g[i] - gk) + Math.abs(b[i] - bk));
+				}
+			} else {
+				for (int i = 0; i < w; i++) {
+					int dr = r[i] - rk;
+					int dg = g[i] - gk;
+					int db = b[i] - bk;
+					best[i] = Math.min(best[i], dr * dr + dg * dg + db * db);
+				}
+			}
+		}
+
+		if (!l1) {
+			// floor(sqrt(s)) of an integer s, the rounding of sqrt never
+			// crosses an integer
+			for (int i = 0; i < w; i++) {
+				best[i] = (int) Math.sqrt(best[i]);
+			}
+		}
+	}
+}
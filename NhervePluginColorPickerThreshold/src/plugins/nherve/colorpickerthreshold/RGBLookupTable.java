@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.Arrays;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * Membership table of the whole 24 bits RGB cube for the KNN method. The
+ * decision only depends on the RGB triple of a pixel, so it is computed once
+ * for each of the 2^24 possible colors (2 MB of bits) and filtering an image
+ * becomes a single lookup per pixel.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class RGBLookupTable {
+
+	/** The number of 24 bits colors. */
+	private final static int NB_RGB_COLORS = 1 << 24;
+
+	/** The bits, one per packed RGB color. */
+	private final long[] bits;
+
+	/** The packed RGB reference colors. */
+	private final int[] colors;
+
+	/** The color space. */
+	private final int colorSpace;
+
+	/** The distance type. */
+	private final Class<? extends ColorDistance> distanceType;
+
+	/** The threshold. */
+	private final int threshold;
+
+	/**
+	 * Instantiates a new, empty, lookup table.
+	 */
+	private RGBLookupTable(int[] colors, int colorSpace, ColorDistance distance, int threshold) {
+		super();
+
+		this.bits = new long[NB_RGB_COLORS >>> 6];
+		this.colors = colors.clone();
+		this.colorSpace = colorSpace;
+		this.distanceType = distance.getClass();
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Builds the table.
+	 *
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @param threshold
+	 *            the threshold
+	 * @param executor
+	 *            the executor, the red values are used as rows
+	 * @return the lookup table
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	static RGBLookupTable build(int[] colors, final int colorSpace, final ColorDistance distance, final int threshold, BandExecutor executor) throws SignatureException {
+		final RGBLookupTable lut = new RGBLookupTable(colors, colorSpace, distance, threshold);
+
+		double[][] csColors = new double[colors.length][];
+		for (int k = 0; k < colors.length; k++) {
+			csColors[k] = ColorSpaceTools.getColorComponentsD_0_255(colorSpace, red(colors[k]), green(colors[k]), blue(colors[k]));
+		}
+		final ColorIndex index = new ColorIndex(csColors);
+
+		// a red value covers 2^16 colors, that is 1024 words of its own
+		executor.execute(256, new BandExecutor.BandTask() {
+			@Override
+			void process(int firstRow, int lastRow) throws SignatureException {
+				double[] rgb = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+				for (int r = firstRow; r < lastRow; r++) {
+					for (int g = 0; g < 256; g++) {
+						for (int b = 0; b < 256; b++) {
+							double[] cc;
+							if (colorSpace == ColorSpaceTools.RGB) {
+								rgb[0] = r;
+								rgb[1] = g;
+								rgb[2] = b;
+								cc = rgb;
+							} else {
+								cc = ColorSpaceTools.getColorComponentsD_0_255(colorSpace, r, g, b);
+							}
+							if (index.isCloserThan(cc, distance, threshold)) {
+								int c = pack(r, g, b);
+								lut.bits[c >>> 6] |= 1L << c;
+							}
+						}
+					}
+				}
+			}
+		});
+
+		return lut;
+	}
+
+	/**
+	 * Checks if the table has been built for these parameters.
+	 *
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @param threshold
+	 *            the threshold
+	 * @return true, if it is still valid
+	 */
+	boolean isBuiltFor(int[] colors, int colorSpace, ColorDistance distance, int threshold) {
+		return (this.colorSpace == colorSpace) && (this.threshold == threshold) && (distanceType == distance.getClass()) && Arrays.equals(this.colors, colors);
+	}
+
+	/**
+	 * Checks if a color is kept.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @return true, if the color is at less than the threshold of one of the
+	 *         reference colors
+	 */
+	boolean contains(int rgb) {
+		return (bits[rgb >>> 6] & (1L << rgb)) != 0;
+	}
+
+	/**
+	 * Filters an image.
+	 *
+	 * @param planes
+	 *            the planes of the image
+	 * @param mask
+	 *            the mask to fill
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void filter(final ColorPlanes planes, final MaskWriter mask, BandExecutor executor) throws SignatureException {
+		final int w = planes.getWidth();
+
+		executor.execute(planes.getHeight(), new BandExecutor.BandTask() {
+			@Override
+			void process(int firstRow, int lastRow) {
+				for (int y = firstRow; y < lastRow; y++) {
+					int offset = y * w;
+					for (int word = 0, x0 = 0; x0 < w; word++, x0 += BitMask.WORD_SIZE) {
+						int end = Math.min(w, x0 + BitMask.WORD_SIZE);
+						long bits = 0;
+						for (int x = x0; x < end; x++) {
+							if (contains(planes.rgb(offset + x))) {
+								bits |= BitMask.bit(x);
+							}
+						}
+						mask.setWord(y, word, bits);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Packs a color.
+	 *
+	 * @param r
+	 *            the red component
+	 * @param g
+	 *            the green component
+	 * @param b
+	 *            the blue component
+	 * @return the packed RGB color
+	 */
+	static int pack(int r, int g, int b) {
+		return (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Gets the red component of a packed color.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @return the red component
+	 */
+	static int red(int rgb) {
+		return (rgb >>> 16) & 0xFF;
+	}
+
+	/**
+	 * Gets the green component of a packed color.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @return the green component
+	 */
+	static int green(int rgb) {
+		return (rgb >>> 8) & 0xFF;
+	}
+
+	/**
+	 * Gets the blue component of a packed color.
+	 *
+	 * @param rgb
+	 *            the packed RGB color
+	 * @return the blue component
+	 */
+	static int blue(int rgb) {
+		return rgb & 0xFF;
+	}
+}
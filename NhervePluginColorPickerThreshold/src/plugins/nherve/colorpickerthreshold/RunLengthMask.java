@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.roi.ROI2DArea;
+
+/**
+ * A binary mask stored as the horizontal runs of kept pixels of each row,
+ * built while the filters write their words. Its size depends on the
+ * outline of the kept areas, not on the size of the image, and it gives an
+ * area ROI without going through a full mask.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class RunLengthMask implements MaskWriter {
+
+	/** The initial capacity of a row, in runs. */
+	private final static int INITIAL_RUNS = 4;
+
+	/** The width. */
+	private final int width;
+
+	/** The height. */
+	private final int height;
+
+	/** The runs of each row, as start (inclusive), end (exclusive) pairs. */
+	private final int[][] runs;
+
+	/** The number of ints used in each row. */
+	private final int[] sizes;
+
+	/**
+	 * Instantiates a new, empty, run length mask.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 */
+	RunLengthMask(int width, int height) {
+		super();
+
+		this.width = width;
+		this.height = height;
+		this.runs = new int[height][];
+		this.sizes = new int[height];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see plugins.nherve.colorpickerthreshold.MaskWriter#setWord(int, int,
+	 * long)
+	 */
+	@Override
+	public void setWord(int y, int word, long bits) {
+		int x0 = word * BitMask.WORD_SIZE;
+		while (bits != 0) {
+			int start = Long.numberOfLeadingZeros(bits);
+			int length = Long.numberOfLeadingZeros(~(bits << start));
+			addRun(y, x0 + start, x0 + start + length);
+			if (start + length == BitMask.WORD_SIZE) {
+				break;
+			}
+			bits &= -1L >>> (start + length);
+		}
+	}
+
+	/**
+	 * Adds a run at the end of a row, merging it with the last one when they
+	 * touch.
+	 */
+	private void addRun(int y, int start, int end) {
+		int[] row = runs[y];
+		int size = sizes[y];
+		if ((size > 0) && (row[size - 1] == start)) {
+			row[size - 1] = end;
+			return;
+		}
+		if (row == null) {
+			row = new int[2 * INITIAL_RUNS];
+			runs[y] = row;
+		} else if (size == row.length) {
+			int[] grown = new int[2 * row.length];
+			System.arraycopy(row, 0, grown, 0, size);
+			row = grown;
+			runs[y] = row;
+		}
+		row[size] = start;
+		row[size + 1] = end;
+		sizes[y] = size + 2;
+	}
+
+	/**
+	 * Counts the kept pixels.
+	 * 
+	 * @return the number of kept pixels
+	 */
+	long count() {
+		long n = 0;
+		for (int y = 0; y < height; y++) {
+			for (int i = 0; i < sizes[y]; i += 2) {
+				n += runs[y][i + 1] - runs[y][i];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Creates the area ROI of the kept pixels. The identical runs of
+	 * consecutive rows are merged in a single rectangle, so that compact
+	 * areas only need a few of them.
+	 * 
+	 * @return the ROI
+	 */
+	ROI2DArea toROI2DArea() {
+		ROI2DArea roi = new ROI2DArea();
+		roi.beginUpdate();
+		try {
+			// the rectangles still open, as start, end, first row, in the
+			// order of their runs
+			int[] open = new int[0];
+			int nbOpen = 0;
+			for (int y = 0; y <= height; y++) {
+				int size = (y < height) ? sizes[y] : 0;
+				int[] row = (y < height) ? runs[y] : null;
+				int[] next = new int[(size / 2) * 3];
+				int nbNext = 0;
+				int o = 0;
+				for (int i = 0; i < size; i += 2) {
+					int start = row[i];
+					int end = row[i + 1];
+					while ((o < nbOpen) && (open[3 * o] < start)) {
+						roi.addRect(open[3 * o], open[3 * o + 2], open[3 * o + 1] - open[3 * o], y - open[3 * o + 2]);
+						o++;
+					}
+					int first = y;
+					if ((o < nbOpen) && (open[3 * o] == start)) {
+						if (open[3 * o + 1] == end) {
+							first = open[3 * o + 2];
+						} else {
+							roi.addRect(open[3 * o], open[3 * o + 2], open[3 * o + 1] - open[3 * o], y - open[3 * o + 2]);
+						}
+						o++;
+					}
+					next[3 * nbNext] = start;
+					next[3 * nbNext + 1] = end;
+					next[3 * nbNext + 2] = first;
+					nbNext++;
+				}
+				while (o < nbOpen) {
+					roi.addRect(open[3 * o], open[3 * o + 2], open[3 * o + 1] - open[3 * o], y - open[3 * o + 2]);
+					o++;
+				}
+				open = next;
+				nbOpen = nbNext;
+			}
+		} finally {
+			roi.endUpdate();
+		}
+		return roi;
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	int getHeight() {
+		return height;
+	}
+}
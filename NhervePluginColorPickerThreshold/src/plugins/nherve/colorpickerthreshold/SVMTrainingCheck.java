@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import java.util.Random;
+
+import plugins.nherve.toolbox.image.feature.learning.SVMClassifier;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.libsvm.svm_parameter;
+
+/**
+ * Checks that the models trained by {@link ColorSVM} predict the same as the
+ * ones trained by the SVMClassifier of the toolbox, which the plugin used
+ * before. Both are trained on the same fixed training sets, for the kernels
+ * of the interface and a few C and gamma, then compared on a grid of colors
+ * and on the training colors, with and without the decision grid. Prints
+ * one line per case and exits with a non zero status if any prediction
+ * differs.
+ *
+ * <pre>
+ * java plugins.nherve.colorpickerthreshold.SVMTrainingCheck
+ * </pre>
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class SVMTrainingCheck {
+
+	/** The kernels. */
+	private final static int[] KERNELS = { svm_parameter.LINEAR, svm_parameter.TRIANGULAR, svm_parameter.RBF };
+
+	/** The kernels names. */
+	private final static String[] KERNELS_NAMES = { "LINEAR", "TRIANGULAR", "RBF" };
+
+	/** The log2 of the C parameters. */
+	private final static int[] LOG_C = { 0, 4 };
+
+	/** The log2 of the gamma parameters. */
+	private final static int[] LOG_GAMMA = { 0, 3 };
+
+	/** The numbers of colors of each class. */
+	private final static int[] NB_COLORS = { 1, 8, ColorPickerThreshold.COL_GRID_MAXCOLORS };
+
+	/** The number of probes per component. */
+	private final static int STEPS = 16;
+
+	/** The seed, the training sets are the same from one run to the other. */
+	private final static long SEED = 20130101L;
+
+	/**
+	 * Creates colors around a center, in [0, 1].
+	 */
+	private static double[][] createColors(int nb, double center, Random rd) {
+		double[][] colors = new double[nb][ColorSpaceTools.NB_COLOR_CHANNELS];
+		for (int i = 0; i < nb; i++) {
+			for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+				colors[i][d] = Math.max(0, Math.min(1, center + rd.nextGaussian() * 0.2));
+			}
+		}
+		return colors;
+	}
+
+	/**
+	 * Converts colors to toolbox signatures.
+	 */
+	private static DenseVectorSignature[] toSignatures(double[][] colors) throws SignatureException {
+		DenseVectorSignature[] signatures = new DenseVectorSignature[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			signatures[i] = toSignature(colors[i]);
+		}
+		return signatures;
+	}
+
+	private static DenseVectorSignature toSignature(double[] x) throws SignatureException {
+		DenseVectorSignature s = new DenseVectorSignature(ColorSpaceTools.NB_COLOR_CHANNELS);
+		for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+			s.set(d, x[d]);
+		}
+		return s;
+	}
+
+	/**
+	 * Counts the colors predicted differently by the two models.
+	 */
+	private static int compare(SVMClassifier reference, ColorSVM.Predictor predictor, double[][] probes) throws SignatureException {
+		int differences = 0;
+		for (double[] x : probes) {
+			if ((reference.predict(toSignature(x)) > 0) != predictor.isPositive(x)) {
+				differences++;
+			}
+		}
+		return differences;
+	}
+
+	/**
+	 * Checks one case.
+	 * 
+	 * @return the number of differences
+	 */
+	private static int check(double[][] pos, double[][] neg, int kernel, double c, double gamma, double[][] probes, BandExecutor executor) throws SignatureException {
+		SVMClassifier reference = new SVMClassifier();
+		reference.createProblem(toSignatures(pos), toSignatures(neg));
+		reference.setC(c);
+		reference.setGamma(gamma);
+		reference.setKernel(kernel);
+		reference.learnModel();
+
+		ColorSVM svm = ColorSVM.train(pos, neg, kernel, c, gamma);
+		int differences = compare(reference, svm.newPredictor(false), probes);
+		svm.buildGrid(executor);
+		differences += compare(reference, svm.newPredictor(true), probes);
+		return differences;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments, unused
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		BandExecutor executor = new BandExecutor(1);
+		Random rd = new Random(SEED);
+		int total = 0;
+
+		for (int nb : NB_COLORS) {
+			double[][] pos = createColors(nb, 0.3, rd);
+			double[][] neg = createColors(nb, 0.7, rd);
+
+			double[][] probes = new double[(STEPS + 1) * (STEPS + 1) * (STEPS + 1) + 2 * nb][];
+			int p = 0;
+			for (int i = 0; i <= STEPS; i++) {
+				for (int j = 0; j <= STEPS; j++) {
+					for (int k = 0; k <= STEPS; k++) {
+						probes[p++] = new double[] { (double) i / STEPS, (double) j / STEPS, (double) k / STEPS };
+					}
+				}
+			}
+			for (int i = 0; i < nb; i++) {
+				probes[p++] = pos[i];
+				probes[p++] = neg[i];
+			}
+
+			for (int k = 0; k < KERNELS.length; k++) {
+				for (int lc : LOG_C) {
+					for (int lg : LOG_GAMMA) {
+						int differences = check(pos, neg, KERNELS[k], Math.pow(2, lc), Math.pow(2, lg), probes, executor);
+						total += differences;
+						System.out.println(String.format("%-12s colors %3d  C 2^%d  gamma 2^%d  %6d differences / %d", KERNELS_NAMES[k], nb, lc, lg, differences, 2 * probes.length));
+					}
+				}
+			}
+		}
+
+		executor.shutdown();
+		if (total > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.TypeUtil;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * Applies a compiled filter to all the images of a sequence, for every T and
+ * Z. The planes are filtered by a producer thread and handed to the calling
+ * thread through a bounded queue, so that only a few planes of raw masks are
+ * in memory at once whatever the size of the sequence.
+ * <p>
+ * The result is a sequence, whose planes are bytes : it needs one byte per
+ * pixel for every T and Z, the masks being 1 bit per pixel only until they
+ * are written. The batch refuses to start when this doesn't fit in the
+ * available heap, rather than running out of memory half way.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class SequenceBatch {
+
+	/**
+	 * A filtered plane.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Plane {
+
+		/** The t. */
+		private final int t;
+
+		/** The z. */
+		private final int z;
+
+		/** The mask, null for the end marker. */
+		private final BitMask mask;
+
+		/**
+		 * Instantiates a new plane.
+		 */
+		Plane(int t, int z, BitMask mask) {
+			super();
+
+			this.t = t;
+			this.z = z;
+			this.mask = mask;
+		}
+	}
+
+	/** The number of filtered planes waiting to be written. */
+	private final static int QUEUE_CAPACITY = 2;
+
+	/** The value of the kept pixels in the mask sequence. */
+	private final static byte KEPT = (byte) 255;
+
+	/** The end marker. */
+	private final static Plane END = new Plane(-1, -1, null);
+
+	/** The filter. */
+	private final CompiledFilter filter;
+
+	/** The executor. */
+	private final BandExecutor executor;
+
+	/** The error of the producer, if any. */
+	private volatile Throwable error;
+
+	/**
+	 * Instantiates a new sequence batch.
+	 *
+	 * @param filter
+	 *            the filter
+	 * @param executor
+	 *            the executor
+	 */
+	SequenceBatch(CompiledFilter filter, BandExecutor executor) {
+		super();
+
+		this.filter = filter;
+		this.executor = executor;
+		this.error = null;
+	}
+
+	/**
+	 * Filters all the images of a sequence.
+	 *
+	 * @param source
+	 *            the sequence
+	 * @return a sequence with the same T and Z, with one byte channel where
+	 *         the kept pixels are 255
+	 * @throws SignatureException
+	 *             the signature exception, or if the result doesn't fit in
+	 *             the available heap
+	 */
+	Sequence run(final Sequence source) throws SignatureException {
+		checkMemory(source);
+
+		final BlockingQueue<Plane> queue = new ArrayBlockingQueue<Plane>(QUEUE_CAPACITY);
+
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int t = 0; t < source.getSizeT(); t++) {
+						for (int z = 0; z < source.getSizeZ(); z++) {
+							IcyBufferedImage image = source.getImage(t, z);
+							if (image != null) {
+								BitMask mask = new BitMask(image.getWidth(), image.getHeight());
+								filter.filter(image, mask, executor);
+								queue.put(new Plane(t, z, mask));
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (Throwable e) {
+					error = e;
+				}
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) {
+					// the consumer is gone
+				}
+			}
+		}, "ColorPickerThreshold-batch");
+		producer.setDaemon(true);
+
+		Sequence result = new Sequence(source.getName() + " - masks");
+		IcyBufferedImage first = source.getFirstImage();
+		int w = first.getWidth();
+		int h = first.getHeight();
+
+		producer.start();
+		result.beginUpdate();
+		try {
+			Plane plane = queue.take();
+			while (plane != END) {
+				IcyBufferedImage img = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_BYTE);
+				plane.mask.fill(img.getDataXYAsByte(0), KEPT);
+				result.setImage(plane.t, plane.z, img);
+				plane = queue.take();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SignatureException("Batch filtering interrupted");
+		} finally {
+			result.endUpdate();
+			producer.interrupt();
+		}
+
+		if (error instanceof SignatureException) {
+			throw (SignatureException) error;
+		}
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		if (error instanceof Error) {
+			throw (Error) error;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Checks that the mask sequence of a sequence fits in the available
+	 * heap, one byte per pixel for every T and Z, plus the planes in flight.
+	 *
+	 * @param source
+	 *            the sequence
+	 * @throws SignatureException
+	 *             if it doesn't
+	 */
+	private static void checkMemory(Sequence source) throws SignatureException {
+		IcyBufferedImage first = source.getFirstImage();
+		long plane = (long) first.getWidth() * first.getHeight();
+		long needed = plane * source.getSizeT() * source.getSizeZ() + plane / 8 * (QUEUE_CAPACITY + 2);
+		Runtime runtime = Runtime.getRuntime();
+		long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		if (needed > available) {
+			throw new SignatureException("The masks of " + source.getName() + " need " + (needed >> 20) + " MB, only " + (available >> 20) + " MB are available");
+		}
+	}
+}
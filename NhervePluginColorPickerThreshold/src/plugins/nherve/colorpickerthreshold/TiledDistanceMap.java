@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import plugins.nherve.toolbox.image.feature.ColorDistance;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * The distance maps of the tiles of a large image, for the KNN method without
+ * lookup table. They only depend on the colors, the color space and the
+ * distance, so they are kept from one {@link TiledMask} to the next : when
+ * only the threshold changes, a tile is a single compare pass over its
+ * levels. The maps are kept in a bounded cache, the least recently used ones
+ * being dropped first.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class TiledDistanceMap {
+
+	/** The image. */
+	private final IcyBufferedImage image;
+
+	/** The packed RGB reference colors. */
+	private final int[] colors;
+
+	/** The color space. */
+	private final int colorSpace;
+
+	/** The distance. */
+	private final ColorDistance distance;
+
+	/** The distance maps, by tile key, in access order. */
+	private final LinkedHashMap<Long, DistanceMap> maps;
+
+	/**
+	 * Instantiates a new, empty, tiled distance map.
+	 * 
+	 * @param image
+	 *            the image
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 */
+	TiledDistanceMap(IcyBufferedImage image, int[] colors, int colorSpace, ColorDistance distance) {
+		super();
+
+		this.image = image;
+		this.colors = colors.clone();
+		this.colorSpace = colorSpace;
+		this.distance = distance;
+
+		maps = new LinkedHashMap<Long, DistanceMap>(TiledMask.MAX_TILES, 0.75f, true) {
+			private static final long serialVersionUID = -3318712254936468021L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, DistanceMap> eldest) {
+				return size() > TiledMask.MAX_TILES;
+			}
+		};
+	}
+
+	/**
+	 * Checks if the maps are computed for these parameters.
+	 * 
+	 * @param image
+	 *            the image
+	 * @param colors
+	 *            the packed RGB reference colors
+	 * @param colorSpace
+	 *            the color space
+	 * @param distance
+	 *            the distance
+	 * @return true, if they are still valid
+	 */
+	boolean isComputedFor(IcyBufferedImage image, int[] colors, int colorSpace, ColorDistance distance) {
+		return (this.image == image) && (this.colorSpace == colorSpace) && (this.distance.getClass() == distance.getClass()) && Arrays.equals(this.colors, colors);
+	}
+
+	/**
+	 * Gets the distance map of a tile, computing it if needed.
+	 * 
+	 * @param key
+	 *            the key of the tile
+	 * @param planes
+	 *            the planes of the image
+	 * @param area
+	 *            the area of the image covered by the tile
+	 * @param step
+	 *            the step of the tile
+	 * @param executor
+	 *            the executor
+	 * @return the distance map of the classified pixels of the tile
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	DistanceMap get(long key, ColorPlanes planes, Rectangle area, int step, BandExecutor executor) throws SignatureException {
+		DistanceMap map;
+		synchronized (maps) {
+			map = maps.get(key);
+		}
+		if (map == null) {
+			IcyBufferedImage extracted = planes.extract(area.x, area.y, area.width, area.height, step);
+			map = DistanceMap.compute(extracted, colors, colorSpace, distance, null, executor);
+			synchronized (maps) {
+				maps.put(key, map);
+			}
+		}
+		return map;
+	}
+}
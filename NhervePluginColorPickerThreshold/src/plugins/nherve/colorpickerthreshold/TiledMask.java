@@ -0,0 +1,430 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * Copyright 2012, 2013 Nicolas Hervé.
+ *
+ * This file is part of Color Picker Threshold, which is an ICY plugin.
+ *
+ * Color Picker Threshold is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Color Picker Threshold is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Color Picker Threshold. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.colorpickerthreshold;
+
+import icy.image.IcyBufferedImage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * A mask of a large image computed lazily, by square tiles, only where it is
+ * looked at. Each tile belongs to a level : at level step, a tile covers
+ * TILE_SIZE x step pixels of the image and only one pixel every step pixels
+ * is classified, so that the number of tiles needed to cover the viewport
+ * doesn't depend on the zoom. The tiles of level 1 are exact, the other ones
+ * are only displayed. The tiles are kept in a bounded cache, the least
+ * recently used ones being dropped first. For the KNN method without lookup
+ * table, the tiles are thresholded from distance maps shared by the tiled
+ * masks of the same colors, see {@link TiledDistanceMap}.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+class TiledMask {
+
+	/**
+	 * A computed tile.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Tile {
+
+		/** The step. */
+		private final int step;
+
+		/** The area of the image covered by the tile. */
+		private final Rectangle area;
+
+		/** The mask of the classified pixels. */
+		private final BitMask mask;
+
+		/** The image painted, created on the first paint. */
+		private BufferedImage view;
+
+		/**
+		 * Instantiates a new tile.
+		 */
+		Tile(int step, Rectangle area, BitMask mask) {
+			super();
+
+			this.step = step;
+			this.area = area;
+			this.mask = mask;
+		}
+
+		/**
+		 * Gets the image painted.
+		 */
+		BufferedImage getView() {
+			if (view == null) {
+				view = mask.toImage();
+			}
+			return view;
+		}
+	}
+
+	/** The size of the side of a tile, in classified pixels, a multiple of the words of a BitMask. */
+	final static int TILE_SIZE = 256;
+
+	/** The maximum number of tiles kept. */
+	final static int MAX_TILES = 256;
+
+	/** The smallest number of pixels for which the mask is computed lazily. */
+	final static long MIN_PIXELS = 4096L * 4096L;
+
+	/** The coarsest level. */
+	private final static int MAX_STEP = 1024;
+
+	/** The image. */
+	private final IcyBufferedImage image;
+
+	/** The planes of the image. */
+	private final ColorPlanes planes;
+
+	/** The parameters. */
+	private final FilterParameters parameters;
+
+	/** The compiled filter. */
+	private final CompiledFilter filter;
+
+	/** The distance maps of the tiles, null if the filter is used. */
+	private final TiledDistanceMap levels;
+
+	/** The label of the mask. */
+	private final String label;
+
+	/** The color of the kept pixels. */
+	private final Color color;
+
+	/** The tiles, by key, in access order. */
+	private final LinkedHashMap<Long, Tile> tiles;
+
+	/** The keys of the tiles being computed, null if none. */
+	private List<Long> pending;
+
+	/**
+	 * Instantiates a new tiled mask. Nothing is computed yet.
+	 * 
+	 * @param image
+	 *            the image, see {@link #isWorthIt(IcyBufferedImage)}
+	 * @param parameters
+	 *            the parameters
+	 * @param filter
+	 *            the filter compiled for the parameters
+	 * @param levels
+	 *            the distance maps of the tiles for the KNN parameters, null
+	 *            to classify the tiles with the filter
+	 * @param label
+	 *            the label of the mask
+	 * @param color
+	 *            the color of the kept pixels
+	 */
+	TiledMask(IcyBufferedImage image, FilterParameters parameters, CompiledFilter filter, TiledDistanceMap levels, String label, Color color) {
+		super();
+
+		this.image = image;
+		this.planes = ColorPlanes.of(image);
+		this.parameters = parameters;
+		this.filter = filter;
+		this.levels = levels;
+		this.label = label;
+		this.color = color;
+
+		tiles = new LinkedHashMap<Long, Tile>(MAX_TILES, 0.75f, true) {
+			private static final long serialVersionUID = 6027454810374151722L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+				return size() > MAX_TILES;
+			}
+		};
+	}
+
+	/**
+	 * Checks if an image is large enough to be filtered lazily.
+	 * 
+	 * @param image
+	 *            the image
+	 * @return true, if it is an 8 bits RGB image of at least MIN_PIXELS
+	 *         pixels
+	 */
+	static boolean isWorthIt(IcyBufferedImage image) {
+		return ((long) image.getWidth() * (long) image.getHeight() >= MIN_PIXELS) && (ColorPlanes.of(image) != null);
+	}
+
+	/**
+	 * Gets the level to display at a zoom factor, so that a classified pixel
+	 * is never much smaller than a screen pixel.
+	 * 
+	 * @param scale
+	 *            the number of screen pixels per image pixel
+	 * @return the step
+	 */
+	static int getStep(double scale) {
+		int step = 1;
+		while ((step < MAX_STEP) && (step * 2 * scale <= 1)) {
+			step *= 2;
+		}
+		return step;
+	}
+
+	/**
+	 * Checks if the mask has been created for these parameters.
+	 * 
+	 * @param parameters
+	 *            the parameters
+	 * @param image
+	 *            the image
+	 * @return true, if it is still valid
+	 */
+	boolean isBuiltFor(FilterParameters parameters, IcyBufferedImage image) {
+		return (this.image == image) && this.parameters.equals(parameters);
+	}
+
+	/**
+	 * Gets the key of a tile.
+	 */
+	private static long key(int step, int column, int row) {
+		return ((long) Integer.numberOfTrailingZeros(step) << 48) | ((long) column << 24) | row;
+	}
+
+	/**
+	 * Gets the keys of the tiles of a level covering an area that are not
+	 * computed yet.
+	 * 
+	 * @param step
+	 *            the step
+	 * @param area
+	 *            the area, in image coordinates
+	 * @return the keys
+	 */
+	synchronized List<Long> getMissingTiles(int step, Rectangle area) {
+		List<Long> missing = new ArrayList<Long>();
+		Rectangle r = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		if (r.isEmpty()) {
+			return missing;
+		}
+		int side = TILE_SIZE * step;
+		for (int row = r.y / side; row <= (r.y + r.height - 1) / side; row++) {
+			for (int column = r.x / side; column <= (r.x + r.width - 1) / side; column++) {
+				long key = key(step, column, row);
+				if (!tiles.containsKey(key)) {
+					missing.add(key);
+				}
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Marks tiles as being computed.
+	 * 
+	 * @param keys
+	 *            the keys of the tiles
+	 * @return false, if the same tiles are already being computed
+	 */
+	synchronized boolean request(List<Long> keys) {
+		if (keys.equals(pending)) {
+			return false;
+		}
+		pending = keys;
+		return true;
+	}
+
+	/**
+	 * Marks the end of the computation of tiles, once they are all computed
+	 * or the computation has been cancelled.
+	 * 
+	 * @param keys
+	 *            the keys given to {@link #request(List)}
+	 */
+	synchronized void done(List<Long> keys) {
+		if (pending == keys) {
+			pending = null;
+		}
+	}
+
+	/**
+	 * Computes a tile, unless it is already computed.
+	 * 
+	 * @param key
+	 *            the key of the tile
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void compute(long key, BandExecutor executor) throws SignatureException {
+		synchronized (this) {
+			if (tiles.containsKey(key)) {
+				return;
+			}
+		}
+
+		int step = 1 << (int) (key >>> 48);
+		int column = (int) ((key >>> 24) & 0xFFFFFF);
+		int row = (int) (key & 0xFFFFFF);
+		Tile tile = computeTile(step, column, row, executor);
+
+		synchronized (this) {
+			tiles.put(key, tile);
+		}
+	}
+
+	/**
+	 * Classifies the pixels of a tile.
+	 */
+	private Tile computeTile(int step, int column, int row, BandExecutor executor) throws SignatureException {
+		int side = TILE_SIZE * step;
+		int x = column * side;
+		int y = row * side;
+		Rectangle area = new Rectangle(x, y, Math.min(side, image.getWidth() - x), Math.min(side, image.getHeight() - y));
+
+		BitMask mask;
+		if (levels != null) {
+			DistanceMap map = levels.get(key(step, column, row), planes, area, step, executor);
+			mask = new BitMask(map.getWidth(), map.getHeight());
+			map.threshold(parameters.getThreshold(), mask, executor);
+		} else {
+			IcyBufferedImage extracted = planes.extract(area.x, area.y, area.width, area.height, step);
+			mask = new BitMask(extracted.getWidth(), extracted.getHeight());
+			filter.filter(extracted, mask, executor);
+		}
+		mask.setColor(color);
+
+		return new Tile(step, area, mask);
+	}
+
+	/**
+	 * Paints the computed tiles intersecting an area, the finest ones over
+	 * the coarsest ones.
+	 * 
+	 * @param g
+	 *            the graphics, in image coordinates
+	 * @param area
+	 *            the area, in image coordinates
+	 */
+	void paint(Graphics2D g, Rectangle area) {
+		List<Tile> visible = new ArrayList<Tile>();
+		synchronized (this) {
+			for (Tile tile : tiles.values()) {
+				if (tile.area.intersects(area)) {
+					visible.add(tile);
+				}
+			}
+		}
+
+		for (int step = MAX_STEP; step >= 1; step /= 2) {
+			for (Tile tile : visible) {
+				if (tile.step == step) {
+					g.drawImage(tile.getView(), tile.area.x, tile.area.y, tile.mask.getWidth() * step, tile.mask.getHeight() * step, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the whole mask at full resolution, reusing the exact tiles
+	 * already computed. The mask is the same as the one of the direct
+	 * filtering.
+	 * 
+	 * @param executor
+	 *            the executor
+	 * @return the mask
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	BitMask toBitMask(BandExecutor executor) throws SignatureException {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		BitMask m = new BitMask(w, h);
+
+		for (int row = 0; row * TILE_SIZE < h; row++) {
+			for (int column = 0; column * TILE_SIZE < w; column++) {
+				Tile tile = getExactTile(column, row, executor);
+				m.copy(tile.mask, tile.area.x, tile.area.y);
+			}
+		}
+
+		m.setLabel(label);
+		if (parameters.getMethod() == FilterParameters.SVM) {
+			// same color as the direct filtering, which sees every pixel
+			Color c = m.getAverageColor(image);
+			m.setColor(new Color(255 - c.getRed(), 255 - c.getGreen(), 255 - c.getBlue()));
+		} else {
+			m.setColor(color);
+		}
+		return m;
+	}
+
+	/**
+	 * Writes the whole mask at full resolution, reusing the exact tiles
+	 * already computed. The tiles are written row of tiles by row of tiles,
+	 * from left to right, so that each row gets its words in order, as a
+	 * {@link MaskWriter} expects.
+	 * 
+	 * @param writer
+	 *            the writer, of the size of the image
+	 * @param executor
+	 *            the executor
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void write(MaskWriter writer, BandExecutor executor) throws SignatureException {
+		int w = image.getWidth();
+		int h = image.getHeight();
+
+		for (int row = 0; row * TILE_SIZE < h; row++) {
+			for (int column = 0; column * TILE_SIZE < w; column++) {
+				Tile tile = getExactTile(column, row, executor);
+				int first = tile.area.x / BitMask.WORD_SIZE;
+				int nbWords = (tile.mask.getWidth() + BitMask.WORD_SIZE - 1) / BitMask.WORD_SIZE;
+				for (int j = 0; j < tile.mask.getHeight(); j++) {
+					for (int word = 0; word < nbWords; word++) {
+						writer.setWord(tile.area.y + j, first + word, tile.mask.getWord(j, word));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a tile of level 1, computing it without keeping it if it is not
+	 * computed yet.
+	 */
+	private Tile getExactTile(int column, int row, BandExecutor executor) throws SignatureException {
+		Tile tile;
+		synchronized (this) {
+			tile = tiles.get(key(1, column, row));
+		}
+		if (tile == null) {
+			tile = computeTile(1, column, row, executor);
+		}
+		return tile;
+	}
+}